@@ -0,0 +1,187 @@
+package com.feigdev.webcom;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.ScheduledFuture;
+
+import android.util.Log;
+
+/**
+ * Runs a group of WebModels at once and reports back a single BatchResult
+ * once all of them are done. Each WebModel still goes through its own
+ * Dispatcher, so the usual pool, host and priority limits apply.
+ *
+ * The WebModels' own listeners are not called, every response ends up
+ * in the BatchResult instead.
+ *
+ * @author emil10001
+ *
+ */
+public class Batch {
+	public static final String TAG = "Batch";
+	private final ArrayList<WebModel> models;
+	private final SimpleResponse[] responses;
+	private final RequestHandle[] handles;
+	private long deadline;
+	private boolean failFast;
+	private BatchListener listener;
+	private ScheduledFuture<?> timer;
+	private int remaining;
+	private boolean started;
+	private boolean finished;
+
+	public Batch(Collection<WebModel> models){
+		this.models = new ArrayList<WebModel>(models);
+		responses = new SimpleResponse[this.models.size()];
+		handles = new RequestHandle[this.models.size()];
+	}
+
+	public synchronized long getDeadline() {
+		return deadline;
+	}
+
+	/**
+	 * @param deadline milliseconds after execute() at which every unfinished
+	 * interaction is cancelled and the result is delivered, 0 for no deadline
+	 */
+	public synchronized void setDeadline(long deadline) {
+		this.deadline = deadline;
+	}
+
+	public synchronized boolean isFailFast() {
+		return failFast;
+	}
+
+	/**
+	 * @param failFast when true, the first response that is not
+	 * SimpleResponse.PASS cancels the rest and delivers the result right away
+	 */
+	public synchronized void setFailFast(boolean failFast) {
+		this.failFast = failFast;
+	}
+
+	/**
+	 * Starts every interaction in the background.
+	 *
+	 * @param listener receives the BatchResult once, on the thread that
+	 * finished the batch
+	 */
+	public void execute(BatchListener listener){
+		synchronized (this) {
+			if (started){
+				throw new IllegalStateException("batch already executed");
+			}
+			started = true;
+			this.listener = listener;
+			remaining = models.size();
+			if (remaining > 0 && deadline > 0){
+				timer = Dispatcher.schedule(new Runnable() {
+					public void run() {
+						expire();
+					}
+				}, deadline);
+			}
+			// still holding the lock, so no response is counted before all handles are known
+			for (int i = 0; i < models.size(); i++){
+				final int index = i;
+				handles[i] = models.get(i).enqueue(new WebComListener() {
+					public void onResponse(SimpleResponse response) {
+						completed(index, response);
+					}
+				}, null);
+			}
+		}
+		if (models.isEmpty()){
+			finish(false, false);
+			return;
+		}
+		// an interaction cancelled on its own, for example by
+		// Dispatcher.cancelAll(), counts as a CANCELLED response
+		for (int i = 0; i < handles.length; i++){
+			final int index = i;
+			handles[i].setOnCancel(new Runnable() {
+				public void run() {
+					completed(index, cancelled(models.get(index), "Cancelled"));
+				}
+			});
+		}
+	}
+
+	/**
+	 * Cancels every interaction that has not finished yet. The listener is
+	 * not called.
+	 */
+	public void cancel(){
+		synchronized (this) {
+			if (finished){
+				return;
+			}
+			listener = null;
+		}
+		finish(false, false);
+	}
+
+	private void completed(int index, SimpleResponse response){
+		boolean fail;
+		synchronized (this) {
+			// a cancel racing the delivery must not count the item twice
+			if (finished || responses[index] != null){
+				return;
+			}
+			responses[index] = response;
+			remaining--;
+			fail = failFast && response.getStatus() != SimpleResponse.PASS;
+			if (!fail && remaining > 0){
+				return;
+			}
+		}
+		finish(false, fail);
+	}
+
+	private void expire(){
+		if(Constants.VERBOSE){ Log.i(TAG,"deadline passed"); }
+		finish(true, false);
+	}
+
+	private void finish(boolean timedOut, boolean failedFast){
+		ArrayList<RequestHandle> outstanding = new ArrayList<RequestHandle>();
+		BatchListener l;
+		BatchResult result;
+		synchronized (this) {
+			if (finished){
+				return;
+			}
+			finished = true;
+			if (timer != null){
+				Dispatcher.unschedule(timer);
+			}
+			for (int i = 0; i < responses.length; i++){
+				if (responses[i] == null){
+					responses[i] = cancelled(models.get(i), timedOut ? "Deadline exceeded" : "Cancelled");
+					if (handles[i] != null){
+						outstanding.add(handles[i]);
+					}
+				}
+			}
+			l = listener;
+			listener = null;
+			result = new BatchResult(responses.clone(), timedOut, failedFast);
+		}
+		for (RequestHandle handle: outstanding){
+			handle.cancel();
+		}
+		if (l != null){
+			l.onBatchComplete(result);
+		}
+	}
+
+	private static SimpleResponse cancelled(WebModel model, String message){
+		SimpleResponse response = new SimpleResponse();
+		response.setUrl(model.getUrl());
+		response.setId(model.getResponse().getId());
+		response.setContentType(model.getContentType());
+		response.setStatus(SimpleResponse.CANCELLED);
+		response.setMessage(message);
+		return response;
+	}
+}
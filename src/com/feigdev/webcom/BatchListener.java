@@ -0,0 +1,5 @@
+package com.feigdev.webcom;
+
+public interface BatchListener {
+	public void onBatchComplete(BatchResult result);
+}
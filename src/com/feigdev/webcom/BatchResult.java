@@ -0,0 +1,71 @@
+package com.feigdev.webcom;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The outcome of a Batch. Holds one SimpleResponse per WebModel, in the
+ * order the WebModels were given to the Batch.
+ *
+ * Interactions the Batch had to cancel, because the deadline passed or
+ * because another one failed in fail fast mode, have the status
+ * SimpleResponse.CANCELLED.
+ *
+ * @author emil10001
+ *
+ */
+public class BatchResult {
+	private final List<SimpleResponse> responses;
+	private final boolean timedOut;
+	private final boolean failedFast;
+
+	BatchResult(SimpleResponse[] responses, boolean timedOut, boolean failedFast){
+		this.responses = Collections.unmodifiableList(Arrays.asList(responses));
+		this.timedOut = timedOut;
+		this.failedFast = failedFast;
+	}
+
+	public List<SimpleResponse> getResponses() {
+		return responses;
+	}
+
+	public SimpleResponse getResponse(int index) {
+		return responses.get(index);
+	}
+
+	public int size() {
+		return responses.size();
+	}
+
+	/**
+	 * @return number of interactions with the status SimpleResponse.PASS
+	 */
+	public int getPassCount() {
+		int passed = 0;
+		for (SimpleResponse r: responses){
+			if (r.getStatus() == SimpleResponse.PASS){
+				passed++;
+			}
+		}
+		return passed;
+	}
+
+	public boolean isAllPassed() {
+		return getPassCount() == responses.size();
+	}
+
+	/**
+	 * @return true if the deadline passed before every interaction finished
+	 */
+	public boolean isTimedOut() {
+		return timedOut;
+	}
+
+	/**
+	 * @return true if the batch stopped early because an interaction failed
+	 */
+	public boolean isFailedFast() {
+		return failedFast;
+	}
+}
@@ -0,0 +1,95 @@
+package com.feigdev.webcom;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads a whole response body into a byte array using buffers from the
+ * BufferPool. When Content-Length is known the only thing allocated per
+ * body is the final array, sized right away. Otherwise the body is read
+ * through one pooled chunk into an array that grows as needed.
+ *
+ * @author emil10001
+ *
+ */
+class BodyReader {
+	static final int CHUNK_SIZE = 16384;
+
+	private BodyReader(){
+	}
+
+	/**
+	 * @param in the body, closed when done
+	 * @param contentLength the announced length, or a negative number if unknown
+	 */
+	static byte[] readFully(InputStream in, long contentLength) throws IOException {
+		if (in == null){
+			return new byte[0];
+		}
+		try {
+			if (contentLength >= 0 && contentLength < Integer.MAX_VALUE){
+				byte[] body = new byte[(int) contentLength];
+				int filled = fill(in, body, 0, body.length);
+				if (filled < body.length){
+					byte[] shorter = new byte[filled];
+					System.arraycopy(body, 0, shorter, 0, filled);
+					return shorter;
+				}
+				int extra = in.read();
+				if (extra == -1){
+					return body;
+				}
+				// more than announced, read the rest the slow way
+				return readChunks(in, body, extra);
+			}
+			return readChunks(in, null, -1);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Reads the rest through a single pooled chunk, copying each read into
+	 * the growing body right away, so the pool lends one buffer per read no
+	 * matter how long the body is.
+	 */
+	private static byte[] readChunks(InputStream in, byte[] head, int next) throws IOException {
+		ByteArrayOutputStream body = new ByteArrayOutputStream(head == null ? CHUNK_SIZE : head.length + CHUNK_SIZE);
+		if (head != null){
+			body.write(head, 0, head.length);
+		}
+		if (next != -1){
+			body.write(next);
+		}
+		BufferPool pool = BufferPool.get();
+		byte[] chunk = pool.acquire(CHUNK_SIZE);
+		try {
+			int read;
+			while ((read = in.read(chunk, 0, chunk.length)) != -1){
+				if ((long) body.size() + read > Integer.MAX_VALUE){
+					throw new ResponseTooLargeException(Integer.MAX_VALUE);
+				}
+				body.write(chunk, 0, read);
+			}
+		} finally {
+			pool.release(chunk);
+		}
+		return body.toByteArray();
+	}
+
+	/**
+	 * @return how many bytes were read, less than length only at the end of the stream
+	 */
+	private static int fill(InputStream in, byte[] buffer, int offset, int length) throws IOException {
+		int filled = 0;
+		while (filled < length){
+			int read = in.read(buffer, offset + filled, length - filled);
+			if (read == -1){
+				break;
+			}
+			filled += read;
+		}
+		return filled;
+	}
+}
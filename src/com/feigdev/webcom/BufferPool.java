@@ -0,0 +1,140 @@
+package com.feigdev.webcom;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the byte buffers used to read response bodies around for the next
+ * response, so reading a body does not create garbage for every chunk.
+ *
+ * Buffers come in a few size classes. Each class keeps at most maxPerClass
+ * free buffers, anything beyond that is left to the garbage collector.
+ * Requests bigger than the largest class get a fresh buffer that is never
+ * pooled.
+ *
+ * The counters tell how well the pool works: every acquire() is either an
+ * allocation or a reuse.
+ *
+ * @author emil10001
+ *
+ */
+public class BufferPool {
+	public static final int[] DEFAULT_SIZES = { 4096, 16384, 65536 };
+	public static final int DEFAULT_MAX_PER_CLASS = 8;
+
+	private static final BufferPool shared = new BufferPool(DEFAULT_SIZES, DEFAULT_MAX_PER_CLASS);
+
+	private final int[] sizes;
+	private final ArrayDeque<byte[]>[] free;
+	private final int maxPerClass;
+	private final AtomicLong allocations = new AtomicLong();
+	private final AtomicLong reuses = new AtomicLong();
+
+	/**
+	 * @param sizes buffer sizes, smallest first
+	 * @param maxPerClass how many free buffers to keep of each size
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public BufferPool(int[] sizes, int maxPerClass){
+		this.sizes = sizes.clone();
+		this.maxPerClass = maxPerClass;
+		free = new ArrayDeque[sizes.length];
+		for (int i = 0; i < sizes.length; i++){
+			free[i] = new ArrayDeque<byte[]>();
+		}
+	}
+
+	/**
+	 * @return the pool response reading uses
+	 */
+	public static BufferPool get(){
+		return shared;
+	}
+
+	/**
+	 * @return a buffer of at least minSize bytes, hand it back with release()
+	 */
+	public byte[] acquire(int minSize){
+		int c = sizeClass(minSize);
+		if (c >= 0){
+			byte[] buffer;
+			synchronized (free[c]) {
+				buffer = free[c].poll();
+			}
+			if (buffer != null){
+				reuses.incrementAndGet();
+				return buffer;
+			}
+			allocations.incrementAndGet();
+			return new byte[sizes[c]];
+		}
+		allocations.incrementAndGet();
+		return new byte[minSize];
+	}
+
+	/**
+	 * Gives a buffer back. It must not be used afterwards.
+	 */
+	public void release(byte[] buffer){
+		if (buffer == null){
+			return;
+		}
+		for (int c = 0; c < sizes.length; c++){
+			if (sizes[c] == buffer.length){
+				synchronized (free[c]) {
+					if (free[c].size() < maxPerClass){
+						free[c].add(buffer);
+					}
+				}
+				return;
+			}
+		}
+	}
+
+	private int sizeClass(int minSize){
+		for (int c = 0; c < sizes.length; c++){
+			if (sizes[c] >= minSize){
+				return c;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return number of acquire() calls that had to allocate a new buffer
+	 */
+	public long getAllocationCount(){
+		return allocations.get();
+	}
+
+	/**
+	 * @return number of acquire() calls served from the pool
+	 */
+	public long getReuseCount(){
+		return reuses.get();
+	}
+
+	/**
+	 * @return bytes currently held in free buffers
+	 */
+	public long getPooledBytes(){
+		long bytes = 0;
+		for (int c = 0; c < sizes.length; c++){
+			synchronized (free[c]) {
+				bytes += (long) free[c].size() * sizes[c];
+			}
+		}
+		return bytes;
+	}
+
+	/**
+	 * Drops every free buffer, for example when the system is low on memory.
+	 */
+	public void clear(){
+		for (int c = 0; c < sizes.length; c++){
+			synchronized (free[c]) {
+				free[c].clear();
+			}
+		}
+	}
+}
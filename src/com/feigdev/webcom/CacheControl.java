@@ -0,0 +1,120 @@
+package com.feigdev.webcom;
+
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.ParseException;
+
+/**
+ * The Cache-Control directives of a request or a response. Times are in
+ * seconds, -1 when the directive is absent. Pragma: no-cache counts as
+ * Cache-Control: no-cache.
+ *
+ * @author emil10001
+ *
+ */
+class CacheControl {
+	// the largest delta-seconds worth keeping, as RFC 7234 suggests
+	static final long MAX_DELTA_SECONDS = 2147483648L;
+
+	boolean noStore;
+	boolean noCache;
+	boolean mustRevalidate;
+	boolean onlyIfCached;
+	long maxAge = -1;
+	long maxStale = -1;
+	long minFresh = -1;
+	long staleWhileRevalidate = -1;
+	long staleIfError = -1;
+
+	/**
+	 * @param headers all headers of the request or response, the ones that
+	 * matter are picked out
+	 */
+	static CacheControl parse(Header[] headers){
+		CacheControl cc = new CacheControl();
+		if (headers == null){
+			return cc;
+		}
+		for (Header h: headers){
+			boolean pragma = h.getName().equalsIgnoreCase("Pragma");
+			if (!pragma && !h.getName().equalsIgnoreCase("Cache-Control")){
+				continue;
+			}
+			HeaderElement[] elements;
+			try {
+				elements = h.getElements();
+			} catch (ParseException e) {
+				continue;
+			}
+			for (HeaderElement e: elements){
+				String name = e.getName().toLowerCase();
+				if (pragma){
+					if (name.equals("no-cache")){
+						cc.noCache = true;
+					}
+				}
+				else if (name.equals("no-store")){
+					cc.noStore = true;
+				}
+				else if (name.equals("no-cache")){
+					cc.noCache = true;
+				}
+				else if (name.equals("must-revalidate") || name.equals("proxy-revalidate")){
+					cc.mustRevalidate = true;
+				}
+				else if (name.equals("only-if-cached")){
+					cc.onlyIfCached = true;
+				}
+				else if (name.equals("max-age")){
+					cc.maxAge = seconds(e.getValue(), cc.maxAge);
+				}
+				else if (name.equals("max-stale")){
+					// without a value any staleness is fine
+					cc.maxStale = e.getValue() == null ? MAX_DELTA_SECONDS : seconds(e.getValue(), cc.maxStale);
+				}
+				else if (name.equals("min-fresh")){
+					cc.minFresh = seconds(e.getValue(), cc.minFresh);
+				}
+				else if (name.equals("stale-while-revalidate")){
+					cc.staleWhileRevalidate = seconds(e.getValue(), cc.staleWhileRevalidate);
+				}
+				else if (name.equals("stale-if-error")){
+					cc.staleIfError = seconds(e.getValue(), cc.staleIfError);
+				}
+			}
+		}
+		return cc;
+	}
+
+	/**
+	 * @return the seconds in milliseconds, clamped to MAX_DELTA_SECONDS so
+	 * huge values don't overflow
+	 */
+	static long millis(long seconds){
+		return Math.min(seconds, MAX_DELTA_SECONDS) * 1000;
+	}
+
+	/**
+	 * @return the delta-seconds value, at most MAX_DELTA_SECONDS, or fallback
+	 * if it is missing or not a number
+	 */
+	static long seconds(String value, long fallback){
+		if (value == null){
+			return fallback;
+		}
+		value = value.trim();
+		if (value.length() == 0){
+			return fallback;
+		}
+		for (int i = 0; i < value.length(); i++){
+			if (value.charAt(i) < '0' || value.charAt(i) > '9'){
+				return fallback;
+			}
+		}
+		// too many digits for a long is still just a very long time
+		if (value.length() > 18){
+			return MAX_DELTA_SECONDS;
+		}
+		return Math.min(Long.parseLong(value), MAX_DELTA_SECONDS);
+	}
+}
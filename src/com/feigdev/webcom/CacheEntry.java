@@ -0,0 +1,243 @@
+package com.feigdev.webcom;
+
+import java.util.ArrayList;
+import java.util.Date;
+
+import org.apache.http.Header;
+import org.apache.http.impl.cookie.DateParseException;
+import org.apache.http.impl.cookie.DateUtils;
+
+/**
+ * A stored response: status, headers and the decoded body, along with when
+ * it was requested and received, which is what its age is worked out
+ * from. Entries never change, a refreshed response is a new entry.
+ *
+ * Times are wall clock milliseconds, since they are compared with the
+ * Date and Expires headers of the server.
+ *
+ * @author emil10001
+ *
+ */
+public class CacheEntry {
+	// without max-age or Expires, trust Last-Modified for at most a day
+	private static final long MAX_HEURISTIC_LIFETIME = 24 * 60 * 60 * 1000L;
+
+	private final int statusCode;
+	private final Header[] headers;
+	private final byte[] body;
+	private final String charset;
+	private final long requestTime;
+	private final long responseTime;
+	private final int source;
+	private CacheControl cacheControl;
+
+	/**
+	 * @param headers response headers, without the ones describing the
+	 * transfer such as Content-Encoding
+	 * @param body the decoded body, not copied
+	 * @param charset of a text body, or null
+	 * @param requestTime when the request was sent
+	 * @param responseTime when the response arrived
+	 */
+	public CacheEntry(int statusCode, Header[] headers, byte[] body, String charset, long requestTime, long responseTime){
+		this(statusCode, headers, body, charset, requestTime, responseTime, SimpleResponse.SOURCE_MEMORY);
+	}
+
+	CacheEntry(int statusCode, Header[] headers, byte[] body, String charset, long requestTime, long responseTime,
+			int source){
+		this.source = source;
+		this.statusCode = statusCode;
+		this.headers = headers;
+		this.body = body;
+		this.charset = charset;
+		this.requestTime = requestTime;
+		this.responseTime = responseTime;
+	}
+
+	/**
+	 * @return SimpleResponse.SOURCE_MEMORY, or SimpleResponse.SOURCE_DISK for
+	 * an entry read back from a DiskResponseCache
+	 */
+	public int getSource(){
+		return source;
+	}
+
+	/**
+	 * @return the same entry, said to come from source
+	 */
+	CacheEntry withSource(int source){
+		return new CacheEntry(statusCode, headers, body, charset, requestTime, responseTime, source);
+	}
+
+	public int getStatusCode(){
+		return statusCode;
+	}
+
+	/**
+	 * @return the headers, do not modify the array
+	 */
+	public Header[] getHeaders(){
+		return headers;
+	}
+
+	/**
+	 * @return the body, do not modify the array
+	 */
+	public byte[] getBody(){
+		return body;
+	}
+
+	public String getCharset(){
+		return charset;
+	}
+
+	public long getRequestTime(){
+		return requestTime;
+	}
+
+	public long getResponseTime(){
+		return responseTime;
+	}
+
+	/**
+	 * @return the first value of the named header, ignoring case, or null
+	 */
+	public String getHeader(String name){
+		for (Header h: headers){
+			if (h.getName().equalsIgnoreCase(name)){
+				return h.getValue();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return a copy updated by the headers of a 304 Not Modified answer, the
+	 * body stays the same
+	 */
+	CacheEntry refresh(Header[] notModified, long requestTime, long responseTime){
+		ArrayList<Header> merged = new ArrayList<Header>();
+		for (Header h: headers){
+			if (!contains(notModified, h.getName())){
+				merged.add(h);
+			}
+		}
+		for (Header h: notModified){
+			// a 304 has no body, whatever it says about one is not about ours
+			if (!isTransferHeader(h.getName())){
+				merged.add(h);
+			}
+		}
+		return new CacheEntry(statusCode, merged.toArray(new Header[merged.size()]), body, charset, requestTime, responseTime);
+	}
+
+	/**
+	 * @return true for headers that describe how a body came over the
+	 * connection, they are wrong for the decoded body of an entry
+	 */
+	static boolean isTransferHeader(String name){
+		return name.equalsIgnoreCase("Content-Encoding") || name.equalsIgnoreCase("Content-Length")
+				|| name.equalsIgnoreCase("Transfer-Encoding") || name.equalsIgnoreCase("Connection")
+				|| name.equalsIgnoreCase("Keep-Alive");
+	}
+
+	private static boolean contains(Header[] headers, String name){
+		for (Header h: headers){
+			if (h.getName().equalsIgnoreCase(name)){
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return roughly how many bytes of memory the entry takes
+	 */
+	public long getSize(){
+		long size = body.length + 64;
+		for (Header h: headers){
+			size += 2 * (h.getName().length() + h.getValue().length()) + 32;
+		}
+		return size;
+	}
+
+	synchronized CacheControl getCacheControl(){
+		if (cacheControl == null){
+			cacheControl = CacheControl.parse(headers);
+		}
+		return cacheControl;
+	}
+
+	/**
+	 * @return how long the response stays fresh after the server sent it,
+	 * in milliseconds
+	 */
+	public long getFreshnessLifetime(){
+		CacheControl cc = getCacheControl();
+		if (cc.maxAge >= 0){
+			return CacheControl.millis(cc.maxAge);
+		}
+		long date = dateHeader("Date", responseTime);
+		String expires = getHeader("Expires");
+		if (expires != null){
+			// an invalid Expires, such as 0, means already expired
+			long expiresAt = dateHeader("Expires", date);
+			return Math.max(0, expiresAt - date);
+		}
+		long lastModified = dateHeader("Last-Modified", -1);
+		if (lastModified >= 0 && lastModified < date){
+			return Math.min((date - lastModified) / 10, MAX_HEURISTIC_LIFETIME);
+		}
+		return 0;
+	}
+
+	/**
+	 * @return the age of the response at now, in milliseconds, counting the
+	 * time it took to arrive and any Age the server reported
+	 */
+	public long getAge(long now){
+		long date = dateHeader("Date", responseTime);
+		long apparentAge = Math.max(0, responseTime - date);
+		// an Age that is not a number is ignored, as if there was none
+		long ageValue = CacheControl.millis(CacheControl.seconds(getHeader("Age"), 0));
+		long correctedAge = ageValue + (responseTime - requestTime);
+		return Math.max(apparentAge, correctedAge) + Math.max(0, now - responseTime);
+	}
+
+	/**
+	 * @return how long past its freshness the entry is at now, in
+	 * milliseconds, negative while it is still fresh
+	 */
+	public long getStaleness(long now){
+		return getAge(now) - getFreshnessLifetime();
+	}
+
+	/**
+	 * @return true if the entry can be used at now without asking the server
+	 */
+	public boolean isFresh(long now){
+		return !getCacheControl().noCache && getAge(now) < getFreshnessLifetime();
+	}
+
+	/**
+	 * @return true if the response says how long it is fresh or how to check
+	 * it is still current, otherwise storing it is pointless
+	 */
+	boolean hasFreshnessInfo(){
+		return getCacheControl().maxAge >= 0 || getHeader("Expires") != null
+				|| getHeader("Last-Modified") != null || getHeader("ETag") != null;
+	}
+
+	private long dateHeader(String name, long fallback){
+		String value = getHeader(name);
+		if (value == null){
+			return fallback;
+		}
+		try {
+			Date date = DateUtils.parseDate(value);
+			return date.getTime();
+		} catch (DateParseException e) {
+			return fallback;
+		}
+	}
+}
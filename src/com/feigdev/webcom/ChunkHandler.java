@@ -0,0 +1,41 @@
+package com.feigdev.webcom;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A StreamHandler that reads the body for you and hands it over one chunk
+ * at a time.
+ *
+ * @author emil10001
+ *
+ */
+public abstract class ChunkHandler implements StreamHandler {
+	public static final int CHUNK_SIZE = 16384;
+
+	/**
+	 * Called for every chunk, in order. The buffer is reused for the next
+	 * chunk and goes back to the BufferPool afterwards, copy out anything
+	 * you want to keep.
+	 */
+	public abstract void onChunk(SimpleResponse response, byte[] buffer, int offset, int length) throws IOException;
+
+	/**
+	 * Called once the whole body has been read.
+	 */
+	public void onComplete(SimpleResponse response) throws IOException {
+	}
+
+	public void onStream(SimpleResponse response, InputStream body) throws IOException {
+		byte[] buffer = BufferPool.get().acquire(CHUNK_SIZE);
+		try {
+			int read;
+			while ((read = body.read(buffer)) != -1){
+				onChunk(response, buffer, 0, read);
+			}
+		} finally {
+			BufferPool.get().release(buffer);
+		}
+		onComplete(response);
+	}
+}
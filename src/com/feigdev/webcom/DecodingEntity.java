@@ -0,0 +1,115 @@
+package com.feigdev.webcom;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+
+/**
+ * Undoes a gzip or deflate Content-Encoding while the body is read, and
+ * counts the bytes on both sides of it. A body without a known encoding
+ * is passed through as is.
+ *
+ * @author emil10001
+ *
+ */
+class DecodingEntity extends HttpEntityWrapper {
+	private final String encoding;
+	private CountingInputStream encoded;
+	private CountingInputStream decoded;
+	private InflatingInputStream inflating;
+
+	DecodingEntity(HttpEntity wrapped){
+		super(wrapped);
+		Header header = wrapped.getContentEncoding();
+		String value = header == null ? null : header.getValue().trim().toLowerCase();
+		if ("gzip".equals(value) || "x-gzip".equals(value) || "deflate".equals(value)){
+			encoding = value;
+		}
+		else {
+			encoding = null;
+		}
+	}
+
+	/**
+	 * @return true if the body is compressed and gets decoded
+	 */
+	boolean isDecoding(){
+		return encoding != null;
+	}
+
+	@Override
+	public InputStream getContent() throws IOException {
+		InputStream raw = wrappedEntity.getContent();
+		if (raw == null){
+			return null;
+		}
+		encoded = new CountingInputStream(raw);
+		InputStream in = encoded;
+		if ("deflate".equals(encoding)){
+			in = inflating = InflatingInputStream.deflate(encoded);
+		}
+		else if (encoding != null){
+			in = inflating = InflatingInputStream.gzip(encoded);
+		}
+		decoded = new CountingInputStream(in);
+		return decoded;
+	}
+
+	@Override
+	public Header getContentEncoding() {
+		return encoding != null ? null : super.getContentEncoding();
+	}
+
+	@Override
+	public long getContentLength() {
+		return encoding != null ? -1 : super.getContentLength();
+	}
+
+	@Override
+	public boolean isStreaming() {
+		return true;
+	}
+
+	@Override
+	public void writeTo(OutputStream out) throws IOException {
+		InputStream in = getContent();
+		byte[] buffer = BufferPool.get().acquire(BodyReader.CHUNK_SIZE);
+		try {
+			int read;
+			while ((read = in.read(buffer)) != -1){
+				out.write(buffer, 0, read);
+			}
+		} finally {
+			BufferPool.get().release(buffer);
+			in.close();
+		}
+	}
+
+	/**
+	 * Gives the decoder back to the InflaterPool even if the body was not
+	 * closed, as happens when it is abandoned for being too large.
+	 */
+	void releaseDecoder(){
+		if (inflating != null){
+			inflating.release();
+		}
+	}
+
+	/**
+	 * @return body bytes read off the connection so far
+	 */
+	long getEncodedCount(){
+		return encoded == null ? 0 : encoded.getCount();
+	}
+
+	/**
+	 * @return body bytes handed out after decoding so far
+	 */
+	long getDecodedCount(){
+		return decoded == null ? 0 : decoded.getCount();
+	}
+}
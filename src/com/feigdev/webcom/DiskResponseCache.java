@@ -0,0 +1,466 @@
+package com.feigdev.webcom;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.http.Header;
+import org.apache.http.message.BasicHeader;
+
+import android.util.Log;
+
+/**
+ * Keeps responses in a directory so they survive the process, up to
+ * maxSize bytes of files. When full, the least recently used entries are
+ * evicted first.
+ *
+ * Each entry is one file, named after a hash of its url. It is written to
+ * a temporary file first and renamed into place, so a crash never leaves a
+ * half written entry behind.
+ *
+ * Which entries exist and the order they were used in is kept in an
+ * append only journal, one line per write, read or removal, replayed when
+ * the cache is opened. Entry files the journal does not know about are
+ * deleted then. When the journal is mostly lines that no longer matter, it
+ * is rewritten from the index, again through a temporary file.
+ *
+ * A hit is a get() that found an entry, whether or not it was still
+ * fresh, a miss is one that did not.
+ *
+ * @author emil10001
+ *
+ */
+public class DiskResponseCache implements ResponseCache {
+	public static final String TAG = "DiskResponseCache";
+
+	static final String JOURNAL = "journal";
+	static final String JOURNAL_TMP = "journal.tmp";
+	private static final String MAGIC = "webcom.DiskResponseCache";
+	private static final int VERSION = 1;
+	private static final String WRITE = "WRITE";
+	private static final String READ = "READ";
+	private static final String REMOVE = "REMOVE";
+	private static final int ENTRY_MAGIC = 0x57434331;
+	private static final int COMPACT_THRESHOLD = 2000;
+
+	private final File directory;
+	private final long maxSize;
+	// hash of the url to the size of its file, least recently used first
+	private final LinkedHashMap<String, Long> index = new LinkedHashMap<String, Long>(16, 0.75f, true);
+	private Writer journal;
+	private int redundantLines;
+	private long size;
+	private long hits;
+	private long misses;
+	private long evictions;
+
+	/**
+	 * Opens the cache in the directory, creating it if needed.
+	 *
+	 * @param directory where the cache keeps its files, used by nothing else
+	 * @param maxSize bytes the entry files may take together
+	 */
+	public DiskResponseCache(File directory, long maxSize) throws IOException {
+		if (maxSize <= 0){
+			throw new IllegalArgumentException("maxSize <= 0");
+		}
+		this.directory = directory;
+		this.maxSize = maxSize;
+		if (!directory.isDirectory() && !directory.mkdirs()){
+			throw new IOException("could not create " + directory);
+		}
+		File journalFile = new File(directory, JOURNAL);
+		if (journalFile.exists() && readJournal(journalFile)){
+			journal = new BufferedWriter(new FileWriter(journalFile, true));
+		}
+		else {
+			index.clear();
+			size = 0;
+			rebuildJournal();
+		}
+		deleteUnknownFiles();
+		trimToSize();
+	}
+
+	public CacheEntry get(String url){
+		String key = key(url);
+		Long written;
+		synchronized (this) {
+			written = index.get(key);
+			if (journal == null || written == null){
+				misses++;
+				return null;
+			}
+			hits++;
+			record(READ, key);
+		}
+		// read outside the lock, a file removed meanwhile just fails to open
+		try {
+			// null for another url with the same hash, whose entry stays
+			return readEntry(entryFile(key), url);
+		} catch (IOException e) {
+			if(Constants.VERBOSE){ e.printStackTrace(); }
+		}
+		removeUnchanged(key, written);
+		return null;
+	}
+
+	/**
+	 * Writes the entry, unless it alone is bigger than the whole cache. The
+	 * cache is best effort, a failed write only means the entry is not kept.
+	 */
+	public void put(String url, CacheEntry entry){
+		String key = key(url);
+		File tmp = new File(directory, key + "." + Thread.currentThread().getId() + ".tmp");
+		Long written;
+		synchronized (this) {
+			written = index.get(key);
+		}
+		long length;
+		try {
+			writeEntry(tmp, url, entry);
+			length = tmp.length();
+		} catch (IOException e) {
+			if(Constants.VERBOSE){ e.printStackTrace(); }
+			tmp.delete();
+			// the older entry is outdated now, unless another put replaced it meanwhile
+			if (written != null){
+				removeUnchanged(key, written);
+			}
+			return;
+		}
+		synchronized (this) {
+			if (journal == null || length > maxSize){
+				tmp.delete();
+				removeKey(key);
+				return;
+			}
+			File file = entryFile(key);
+			file.delete();
+			if (!tmp.renameTo(file)){
+				tmp.delete();
+				removeKey(key);
+				return;
+			}
+			// a Long of its own, so removeUnchanged() can tell this write from later ones
+			Long old = index.put(key, new Long(length));
+			if (old != null){
+				size -= old;
+			}
+			size += length;
+			record(WRITE, key + " " + length);
+			trimToSize();
+		}
+	}
+
+	public synchronized void remove(String url){
+		removeKey(key(url));
+	}
+
+	/**
+	 * Deletes every entry. The cache stays usable.
+	 */
+	public synchronized void clear(){
+		for (String key: index.keySet()){
+			entryFile(key).delete();
+		}
+		index.clear();
+		size = 0;
+		try {
+			rebuildJournal();
+		} catch (IOException e) {
+			if(Constants.VERBOSE){ e.printStackTrace(); }
+		}
+	}
+
+	/**
+	 * Closes the journal. Afterwards every get() misses and put() does nothing.
+	 */
+	public synchronized void close() throws IOException {
+		if (journal != null){
+			journal.close();
+			journal = null;
+		}
+	}
+
+	public File getDirectory(){
+		return directory;
+	}
+
+	public long getMaxSize(){
+		return maxSize;
+	}
+
+	/**
+	 * @return bytes the entry files take now
+	 */
+	public synchronized long getSize(){
+		return size;
+	}
+
+	public synchronized int getEntryCount(){
+		return index.size();
+	}
+
+	public synchronized long getHitCount(){
+		return hits;
+	}
+
+	public synchronized long getMissCount(){
+		return misses;
+	}
+
+	public synchronized long getEvictionCount(){
+		return evictions;
+	}
+
+	/**
+	 * Removes the entry only if the index still holds the very value that
+	 * was looked up, not one a put() from another thread left there since.
+	 */
+	private synchronized void removeUnchanged(String key, Long written){
+		if (index.get(key) == written){
+			removeKey(key);
+		}
+	}
+
+	private void removeKey(String key){
+		Long old = index.remove(key);
+		entryFile(key).delete();
+		if (old != null){
+			size -= old;
+			record(REMOVE, key);
+		}
+	}
+
+	private void trimToSize(){
+		Iterator<Map.Entry<String, Long>> eldest = index.entrySet().iterator();
+		while (size > maxSize && eldest.hasNext()){
+			Map.Entry<String, Long> e = eldest.next();
+			size -= e.getValue();
+			entryFile(e.getKey()).delete();
+			eldest.remove();
+			evictions++;
+			record(REMOVE, e.getKey());
+			if(Constants.VERBOSE){ Log.i(TAG,"evicted " + e.getKey()); }
+		}
+	}
+
+	/**
+	 * Appends a line to the journal, and rewrites the journal once most of
+	 * its lines are about entries used again or gone since.
+	 */
+	private void record(String op, String args){
+		if (journal == null){
+			return;
+		}
+		try {
+			journal.write(op + " " + args + "\n");
+			journal.flush();
+			redundantLines++;
+			if (redundantLines >= COMPACT_THRESHOLD && redundantLines >= index.size()){
+				rebuildJournal();
+			}
+		} catch (IOException e) {
+			// without a journal the next start would not know the entries, stop using the cache
+			if(Constants.VERBOSE){ e.printStackTrace(); }
+			try {
+				journal.close();
+			} catch (IOException ignored) {
+			}
+			journal = null;
+		}
+	}
+
+	/**
+	 * @return false if the journal is not one this version can read
+	 */
+	private boolean readJournal(File journalFile) throws IOException {
+		BufferedReader in = new BufferedReader(new FileReader(journalFile));
+		int lines = 0;
+		try {
+			String header = in.readLine();
+			if (!(MAGIC + " " + VERSION).equals(header)){
+				return false;
+			}
+			String line;
+			while ((line = in.readLine()) != null){
+				lines++;
+				String[] parts = line.split(" ");
+				// a line cut short by a crash is simply skipped
+				if (parts.length == 3 && parts[0].equals(WRITE)){
+					try {
+						Long old = index.put(parts[1], Long.valueOf(parts[2]));
+						if (old != null){
+							size -= old;
+						}
+						size += Long.parseLong(parts[2]);
+					} catch (NumberFormatException e) {
+						continue;
+					}
+				}
+				else if (parts.length == 2 && parts[0].equals(READ)){
+					index.get(parts[1]);
+				}
+				else if (parts.length == 2 && parts[0].equals(REMOVE)){
+					Long old = index.remove(parts[1]);
+					if (old != null){
+						size -= old;
+					}
+				}
+			}
+		} finally {
+			in.close();
+		}
+		redundantLines = lines - index.size();
+		return true;
+	}
+
+	/**
+	 * Drops index entries whose file is gone or has the wrong size, and
+	 * deletes files the index does not know, such as temporary files of
+	 * writes a crash interrupted.
+	 */
+	private void deleteUnknownFiles(){
+		Iterator<Map.Entry<String, Long>> it = index.entrySet().iterator();
+		while (it.hasNext()){
+			Map.Entry<String, Long> e = it.next();
+			if (entryFile(e.getKey()).length() != e.getValue()){
+				size -= e.getValue();
+				entryFile(e.getKey()).delete();
+				it.remove();
+			}
+		}
+		File[] files = directory.listFiles();
+		if (files == null){
+			return;
+		}
+		for (File f: files){
+			String name = f.getName();
+			if (name.equals(JOURNAL)){
+				continue;
+			}
+			if (!name.endsWith(".0") || !index.containsKey(name.substring(0, name.length() - 2))){
+				f.delete();
+			}
+		}
+	}
+
+	private void rebuildJournal() throws IOException {
+		if (journal != null){
+			journal.close();
+		}
+		File tmp = new File(directory, JOURNAL_TMP);
+		Writer out = new BufferedWriter(new FileWriter(tmp));
+		try {
+			out.write(MAGIC + " " + VERSION + "\n");
+			for (Map.Entry<String, Long> e: index.entrySet()){
+				out.write(WRITE + " " + e.getKey() + " " + e.getValue() + "\n");
+			}
+		} finally {
+			out.close();
+		}
+		File journalFile = new File(directory, JOURNAL);
+		if (!tmp.renameTo(journalFile)){
+			journalFile.delete();
+			if (!tmp.renameTo(journalFile)){
+				journal = null;
+				throw new IOException("could not move " + tmp + " to " + journalFile);
+			}
+		}
+		journal = new BufferedWriter(new FileWriter(journalFile, true));
+		redundantLines = 0;
+	}
+
+	private File entryFile(String key){
+		return new File(directory, key + ".0");
+	}
+
+	private static void writeEntry(File file, String url, CacheEntry entry) throws IOException {
+		FileOutputStream fos = new FileOutputStream(file);
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+			out.writeInt(ENTRY_MAGIC);
+			out.writeUTF(url);
+			out.writeInt(entry.getStatusCode());
+			out.writeLong(entry.getRequestTime());
+			out.writeLong(entry.getResponseTime());
+			out.writeBoolean(entry.getCharset() != null);
+			if (entry.getCharset() != null){
+				out.writeUTF(entry.getCharset());
+			}
+			Header[] headers = entry.getHeaders();
+			out.writeInt(headers.length);
+			for (Header h: headers){
+				out.writeUTF(h.getName());
+				out.writeUTF(h.getValue());
+			}
+			out.writeInt(entry.getBody().length);
+			out.write(entry.getBody());
+			out.flush();
+			// on disk before the rename makes it visible
+			fos.getFD().sync();
+		} finally {
+			fos.close();
+		}
+	}
+
+	/**
+	 * @return the entry, or null if the file holds another url whose hash is the same
+	 */
+	private static CacheEntry readEntry(File file, String url) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			if (in.readInt() != ENTRY_MAGIC){
+				throw new IOException("not an entry: " + file);
+			}
+			if (!url.equals(in.readUTF())){
+				return null;
+			}
+			int statusCode = in.readInt();
+			long requestTime = in.readLong();
+			long responseTime = in.readLong();
+			String charset = in.readBoolean() ? in.readUTF() : null;
+			Header[] headers = new Header[in.readInt()];
+			for (int i = 0; i < headers.length; i++){
+				headers[i] = new BasicHeader(in.readUTF(), in.readUTF());
+			}
+			byte[] body = new byte[in.readInt()];
+			in.readFully(body);
+			return new CacheEntry(statusCode, headers, body, charset, requestTime, responseTime, SimpleResponse.SOURCE_DISK);
+		} finally {
+			in.close();
+		}
+	}
+
+	private static String key(String url){
+		try {
+			byte[] digest = MessageDigest.getInstance("MD5").digest(url.getBytes("UTF-8"));
+			StringBuilder hex = new StringBuilder(32);
+			for (byte b: digest){
+				hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+			}
+			return hex.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new AssertionError(e);
+		} catch (UnsupportedEncodingException e) {
+			throw new AssertionError(e);
+		}
+	}
+}
@@ -0,0 +1,652 @@
+package com.feigdev.webcom;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.PriorityQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.util.Log;
+
+/**
+ * Runs WebModel interactions in the background. Every call to
+ * WebModel.interact() is handed to a Dispatcher rather than getting its
+ * own thread, so the number of threads doing network work stays bounded.
+ *
+ * A Dispatcher is either backed by a pool it owns (see newFixed() and
+ * newElastic()) or by any Executor the caller wants to plug in.
+ *
+ * Work is queued per host. At most maxRequests calls are handed to the
+ * executor at a time and at most maxRequestsPerHost of those go to the
+ * same host. Hosts with queued work take turns, so a burst against one
+ * slow host cannot hold every worker while other hosts wait.
+ *
+ * Each call has a priority, see WebModel.PRIORITY_HIGH and friends. The
+ * call with the highest priority goes first, calls with equal priority go
+ * in the order they were queued. A call gains one priority level for every
+ * agingInterval it spends waiting, so low priority work is never starved.
+ *
+ * Calls queued by WebModel carry a RequestHandle, which can take them back
+ * out of the queue. cancelAll() does the same for every call with a given tag.
+ *
+ * Identical GETs queued while one is already in flight are not queued
+ * again, they join the one in flight and get a copy of its response.
+ *
+ * @author emil10001
+ *
+ */
+public class Dispatcher {
+	public static final String TAG = "Dispatcher";
+	public static final int DEFAULT_MAX_THREADS = 4;
+	public static final long DEFAULT_KEEP_ALIVE = 30000;
+	public static final int DEFAULT_MAX_REQUESTS = 64;
+	public static final int DEFAULT_MAX_REQUESTS_PER_HOST = 4;
+	public static final long DEFAULT_AGING_INTERVAL = 5000;
+
+	private static Dispatcher defaultDispatcher;
+	private static ScheduledThreadPoolExecutor timer;
+
+	private final Executor executor;
+	private final boolean ownsExecutor;
+	private int maxRequests;
+	private int maxRequestsPerHost = DEFAULT_MAX_REQUESTS_PER_HOST;
+	private long agingInterval = DEFAULT_AGING_INTERVAL;
+	private int running;
+	private long sequence;
+	private final HashMap<String, HostQueue> hosts = new HashMap<String, HostQueue>();
+	// hosts that have queued calls, in the order they get their next turn
+	private final ArrayDeque<HostQueue> ready = new ArrayDeque<HostQueue>();
+	private final ArrayList<Call> runningCalls = new ArrayList<Call>();
+	private final HashMap<String, SharedGet> sharedGets = new HashMap<String, SharedGet>();
+
+	/**
+	 * Orders calls within a host. Since every waiting call ages at the same
+	 * rate, comparing priority * agingInterval - queuedAt gives the same order
+	 * as comparing aged priorities at any moment, without the key changing.
+	 */
+	private final Comparator<Call> callOrder = new Comparator<Call>() {
+		public int compare(Call a, Call b) {
+			long rankA = a.priority * agingInterval - a.queuedAt;
+			long rankB = b.priority * agingInterval - b.queuedAt;
+			if (rankA != rankB){
+				return rankA > rankB ? -1 : 1;
+			}
+			return a.sequence < b.sequence ? -1 : (a.sequence == b.sequence ? 0 : 1);
+		}
+	};
+
+	/**
+	 * Wraps an existing executor. The caller keeps ownership of it,
+	 * shutdown() will not stop it.
+	 *
+	 * @param executor where the network work will be run
+	 */
+	public Dispatcher(Executor executor){
+		this(executor, false, DEFAULT_MAX_REQUESTS);
+	}
+
+	private Dispatcher(Executor executor, boolean ownsExecutor, int maxRequests){
+		if (executor == null){
+			throw new IllegalArgumentException("executor == null");
+		}
+		this.executor = executor;
+		this.ownsExecutor = ownsExecutor;
+		this.maxRequests = maxRequests;
+	}
+
+	/**
+	 * A pool that keeps exactly nThreads threads alive.
+	 *
+	 * @param nThreads number of worker threads
+	 * @return Dispatcher backed by a fixed size pool
+	 */
+	public static Dispatcher newFixed(int nThreads){
+		return new Dispatcher(newPool(nThreads, 0), true, nThreads);
+	}
+
+	/**
+	 * A pool that grows up to maxThreads while there is work queued and
+	 * lets idle threads die off after keepAliveMillis.
+	 *
+	 * @param maxThreads upper bound on the number of worker threads
+	 * @param keepAliveMillis how long an idle worker is kept around
+	 * @return Dispatcher backed by an elastic, bounded pool
+	 */
+	public static Dispatcher newElastic(int maxThreads, long keepAliveMillis){
+		return new Dispatcher(newPool(maxThreads, keepAliveMillis), true, maxThreads);
+	}
+
+	private static ThreadPoolExecutor newPool(int nThreads, long keepAliveMillis){
+		if (nThreads < 1){
+			throw new IllegalArgumentException("nThreads < 1");
+		}
+		// core == max, so the pool fills up to nThreads before anything queues.
+		// Letting core threads time out is what makes the elastic pool shrink.
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(nThreads, nThreads,
+				keepAliveMillis > 0 ? keepAliveMillis : DEFAULT_KEEP_ALIVE, TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory(Constants.TAG));
+		if (keepAliveMillis > 0){
+			pool.allowCoreThreadTimeOut(true);
+		}
+		return pool;
+	}
+
+	/**
+	 * @return the Dispatcher used by every WebModel that was not given its own
+	 */
+	public static synchronized Dispatcher getDefault(){
+		if (defaultDispatcher == null){
+			defaultDispatcher = newElastic(DEFAULT_MAX_THREADS, DEFAULT_KEEP_ALIVE);
+		}
+		return defaultDispatcher;
+	}
+
+	/**
+	 * Replaces the process wide Dispatcher. The previous one is not shut down,
+	 * work already handed to it will still complete.
+	 *
+	 * @param dispatcher the new default, or null to go back to the built in pool
+	 */
+	public static synchronized void setDefault(Dispatcher dispatcher){
+		defaultDispatcher = dispatcher;
+	}
+
+	/**
+	 * Runs a short task, like a deadline or timeout, after a delay on the
+	 * shared timer thread. Network work does not belong here.
+	 */
+	static synchronized ScheduledFuture<?> schedule(Runnable task, long delayMillis){
+		if (timer == null){
+			timer = new ScheduledThreadPoolExecutor(1, new NamedThreadFactory(Constants.TAG + "-timer", true));
+		}
+		return timer.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Cancels a task from schedule() and takes it off the timer's queue.
+	 * API 10 has no setRemoveOnCancelPolicy(), without the purge a cancelled
+	 * timeout would keep its future and response reachable until it expires.
+	 */
+	static void unschedule(ScheduledFuture<?> task){
+		if (!task.cancel(false)){
+			return;
+		}
+		ScheduledThreadPoolExecutor t;
+		synchronized (Dispatcher.class) {
+			t = timer;
+		}
+		if (t != null){
+			t.purge();
+		}
+	}
+
+	/**
+	 * Queues the runnable to be run on one of the worker threads.
+	 *
+	 * @param runnable The runnable instance containing network operations to
+	 *        be executed.
+	 */
+	public void execute(Runnable runnable){
+		execute("", WebModel.PRIORITY_NORMAL, runnable);
+	}
+
+	/**
+	 * Queues the runnable with the other work for the same host.
+	 *
+	 * @param host the host the runnable talks to, see hostOf()
+	 * @param priority WebModel.PRIORITY_LOW, PRIORITY_NORMAL or PRIORITY_HIGH
+	 * @param runnable The runnable instance containing network operations to
+	 *        be executed.
+	 */
+	public void execute(String host, int priority, Runnable runnable){
+		enqueue(host, priority, null, runnable);
+	}
+
+	/**
+	 * Queues work that can be cancelled through its handle.
+	 */
+	void enqueue(String host, int priority, RequestHandle handle, Runnable runnable){
+		if(Constants.VERBOSE){ Log.i(TAG,"execute(" + host + ")"); }
+		if (handle != null){
+			handle.setDispatcher(this);
+		}
+		synchronized (this) {
+			HostQueue h = hosts.get(host);
+			if (h == null){
+				h = new HostQueue(host, callOrder);
+				hosts.put(host, h);
+			}
+			if (h.queue.isEmpty()){
+				ready.add(h);
+			}
+			h.queue.add(new Call(h, priority, sequence++, handle, runnable));
+		}
+		promote();
+	}
+
+	/**
+	 * Joins the identical GET that is already queued or running, or queues a
+	 * new one that later identical GETs can join.
+	 *
+	 * @param key identifies identical requests: method, url, headers and cookies
+	 * @param handle the participant's own handle
+	 * @param fetch runs the request, only used if there is nothing to join
+	 * @param sink receives the shared response
+	 */
+	void enqueueShared(String key, int priority, RequestHandle handle, SharedGet.Fetch fetch, WebComListener sink){
+		handle.setDispatcher(this);
+		SharedGet group;
+		synchronized (this) {
+			group = sharedGets.get(key);
+			if (group != null && group.join(handle, sink)){
+				if(Constants.VERBOSE){ Log.i(TAG,"joined in flight GET " + key); }
+				// a more urgent participant must not wait behind the one that queued it
+				raise(group.network, priority);
+				return;
+			}
+			group = new SharedGet(this, key, new RequestHandle(handle.host, null, handle.getController()), fetch);
+			group.join(handle, sink);
+			sharedGets.put(key, group);
+		}
+		enqueue(handle.host, priority, group.network, group);
+	}
+
+	/**
+	 * Stops new participants from joining a shared GET.
+	 */
+	synchronized void forget(SharedGet group){
+		if (sharedGets.get(group.key) == group){
+			sharedGets.remove(group.key);
+		}
+	}
+
+	/**
+	 * Hands queued calls to the executor for as long as the global and per
+	 * host limits allow. Each turn goes to the host whose next call has the
+	 * highest aged priority, ties go to the host that waited longest for a turn.
+	 */
+	private void promote(){
+		ArrayList<Call> toRun = new ArrayList<Call>();
+		synchronized (this) {
+			long now = now();
+			while (running < maxRequests){
+				HostQueue best = null;
+				long bestLevel = 0;
+				for (HostQueue h: ready){
+					if (h.running < maxRequestsPerHost){
+						long level = level(h.queue.peek(), now);
+						if (best == null || level > bestLevel){
+							best = h;
+							bestLevel = level;
+						}
+					}
+				}
+				if (best == null){
+					break;
+				}
+				ready.remove(best);
+				Call call = best.queue.poll();
+				toRun.add(call);
+				runningCalls.add(call);
+				best.running++;
+				running++;
+				if (!best.queue.isEmpty()){
+					ready.add(best);
+				}
+			}
+		}
+		for (Call call: toRun){
+			try {
+				executor.execute(call);
+			} catch (RejectedExecutionException e) {
+				Log.w(TAG, "executor rejected call to " + call.host.host, e);
+				call.reject();
+			}
+		}
+	}
+
+	private void finished(Call call){
+		synchronized (this) {
+			HostQueue h = call.host;
+			h.running--;
+			running--;
+			runningCalls.remove(call);
+			if (h.running == 0 && h.queue.isEmpty()){
+				hosts.remove(h.host);
+			}
+		}
+		promote();
+	}
+
+	/**
+	 * Takes a call out of the queue if it has not been handed to the executor yet.
+	 *
+	 * @return true if the call was still queued
+	 */
+	/**
+	 * Moves a queued call up to the given priority if it is lower, keeping
+	 * its place among calls that waited as long. Caller holds the lock.
+	 */
+	private void raise(RequestHandle handle, int priority){
+		HostQueue h = hosts.get(handle.host);
+		if (h == null){
+			return;
+		}
+		for (Call call: h.queue){
+			if (call.handle == handle){
+				if (call.priority < priority){
+					// the queue only orders calls as they are added
+					h.queue.remove(call);
+					h.queue.add(new Call(call, priority));
+				}
+				return;
+			}
+		}
+	}
+
+	synchronized boolean remove(RequestHandle handle){
+		HostQueue h = hosts.get(handle.host);
+		if (h == null){
+			return false;
+		}
+		for (Call call: h.queue){
+			if (call.handle == handle){
+				h.queue.remove(call);
+				if (h.queue.isEmpty()){
+					ready.remove(h);
+					if (h.running == 0){
+						hosts.remove(h.host);
+					}
+				}
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Cancels every queued or running call whose WebModel has the given tag.
+	 * Queued calls are dropped, running ones have their http request aborted.
+	 *
+	 * @param tag the tag given to WebModel.setTag()
+	 * @return number of calls that were cancelled
+	 */
+	public int cancelAll(Object tag){
+		if (tag == null){
+			return 0;
+		}
+		ArrayList<RequestHandle> matching = new ArrayList<RequestHandle>();
+		synchronized (this) {
+			for (HostQueue h: hosts.values()){
+				for (Call call: h.queue){
+					if (call.handle != null && tag.equals(call.handle.getTag())){
+						matching.add(call.handle);
+					}
+				}
+			}
+			for (Call call: runningCalls){
+				if (call.handle != null && tag.equals(call.handle.getTag())){
+					matching.add(call.handle);
+				}
+			}
+			for (SharedGet group: sharedGets.values()){
+				for (RequestHandle handle: group.participants()){
+					if (tag.equals(handle.getTag())){
+						matching.add(handle);
+					}
+				}
+			}
+		}
+		int cancelled = 0;
+		for (RequestHandle handle: matching){
+			if (handle.cancel()){
+				cancelled++;
+			}
+		}
+		return cancelled;
+	}
+
+	private static long now(){
+		return System.nanoTime() / 1000000;
+	}
+
+	/**
+	 * The priority a call has after aging, one level up per agingInterval waited.
+	 */
+	private long level(Call call, long now){
+		return call.priority + (now - call.queuedAt) / agingInterval;
+	}
+
+	/**
+	 * @return number of calls handed to the executor and not yet finished
+	 */
+	public synchronized int getRunningCount(){
+		return running;
+	}
+
+	/**
+	 * @return number of calls waiting for a free slot
+	 */
+	public synchronized int getQueuedCount(){
+		int queued = 0;
+		for (HostQueue h: hosts.values()){
+			queued += h.queue.size();
+		}
+		return queued;
+	}
+
+	public synchronized int getMaxRequests(){
+		return maxRequests;
+	}
+
+	/**
+	 * @param maxRequests how many calls may run at once over all hosts
+	 */
+	public void setMaxRequests(int maxRequests){
+		if (maxRequests < 1){
+			throw new IllegalArgumentException("maxRequests < 1");
+		}
+		synchronized (this) {
+			this.maxRequests = maxRequests;
+		}
+		promote();
+	}
+
+	public synchronized int getMaxRequestsPerHost(){
+		return maxRequestsPerHost;
+	}
+
+	/**
+	 * @param maxRequestsPerHost how many calls may run at once against a single host
+	 */
+	public void setMaxRequestsPerHost(int maxRequestsPerHost){
+		if (maxRequestsPerHost < 1){
+			throw new IllegalArgumentException("maxRequestsPerHost < 1");
+		}
+		synchronized (this) {
+			this.maxRequestsPerHost = maxRequestsPerHost;
+		}
+		promote();
+	}
+
+	public synchronized long getAgingInterval(){
+		return agingInterval;
+	}
+
+	/**
+	 * @param agingInterval milliseconds a queued call has to wait to gain one
+	 * priority level
+	 */
+	public void setAgingInterval(long agingInterval){
+		if (agingInterval < 1){
+			throw new IllegalArgumentException("agingInterval < 1");
+		}
+		synchronized (this) {
+			this.agingInterval = agingInterval;
+			// the order within each host depends on agingInterval, so re-sort
+			for (HostQueue h: hosts.values()){
+				ArrayList<Call> queued = new ArrayList<Call>(h.queue);
+				h.queue.clear();
+				h.queue.addAll(queued);
+			}
+		}
+		promote();
+	}
+
+	/**
+	 * Pulls the host, and port if there is one, out of a url without
+	 * building a URI, so urls with unescaped characters still work.
+	 *
+	 * @param url full url, as given to WebModel
+	 * @return lower case host[:port], or "" if the url has none
+	 */
+	public static String hostOf(String url){
+		if (url == null){
+			return "";
+		}
+		int start = url.indexOf("://");
+		start = start < 0 ? 0 : start + 3;
+		int end = url.length();
+		for (int i = start; i < end; i++){
+			char c = url.charAt(i);
+			if (c == '/' || c == '?' || c == '#'){
+				end = i;
+			}
+		}
+		int at = url.lastIndexOf('@', end - 1);
+		if (at >= start){
+			start = at + 1;
+		}
+		return url.substring(start, end).toLowerCase();
+	}
+
+	public Executor getExecutor(){
+		return executor;
+	}
+
+	/**
+	 * Stops the worker threads once the queued work is done. Only has an effect
+	 * on pools created by newFixed() or newElastic().
+	 */
+	public void shutdown(){
+		if (ownsExecutor && executor instanceof ExecutorService){
+			((ExecutorService) executor).shutdown();
+		}
+	}
+
+	/**
+	 * Work that has to answer even if it never runs, because the executor
+	 * refused it, for example after shutdown(). rejected() is called on the
+	 * thread that tried to hand it over.
+	 */
+	interface Rejectable extends Runnable {
+		void rejected();
+	}
+
+	private static class HostQueue {
+		final String host;
+		final PriorityQueue<Call> queue;
+		int running;
+
+		HostQueue(String host, Comparator<Call> order){
+			this.host = host;
+			this.queue = new PriorityQueue<Call>(11, order);
+		}
+	}
+
+	private class Call implements Runnable {
+		final HostQueue host;
+		final int priority;
+		final long sequence;
+		final long queuedAt;
+		final RequestHandle handle;
+		final Runnable work;
+
+		Call(HostQueue host, int priority, long sequence, RequestHandle handle, Runnable work){
+			this.host = host;
+			this.priority = priority;
+			this.sequence = sequence;
+			this.queuedAt = now();
+			this.handle = handle;
+			this.work = work;
+		}
+
+		/**
+		 * The same call at another priority.
+		 */
+		Call(Call call, int priority){
+			this.host = call.host;
+			this.priority = priority;
+			this.sequence = call.sequence;
+			this.queuedAt = call.queuedAt;
+			this.handle = call.handle;
+			this.work = call.work;
+		}
+
+		public void run() {
+			try {
+				if (handle == null || handle.start()){
+					work.run();
+				}
+			} finally {
+				if (handle != null){
+					handle.finish();
+				}
+				finished(this);
+			}
+		}
+
+		/**
+		 * The executor would not take the call, let its work report a failure.
+		 */
+		void reject(){
+			try {
+				if (work instanceof Rejectable && (handle == null || handle.start())){
+					((Rejectable) work).rejected();
+				}
+			} finally {
+				if (handle != null){
+					handle.finish();
+				}
+				finished(this);
+			}
+		}
+	}
+
+	/**
+	 * Gives worker threads readable names, WebCom-1, WebCom-2, ...
+	 */
+	static class NamedThreadFactory implements ThreadFactory {
+		private final AtomicInteger count = new AtomicInteger();
+		private final String prefix;
+		private final boolean daemon;
+
+		NamedThreadFactory(String prefix){
+			this(prefix, false);
+		}
+
+		NamedThreadFactory(String prefix, boolean daemon){
+			this.prefix = prefix;
+			this.daemon = daemon;
+		}
+
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, prefix + "-" + count.incrementAndGet());
+			t.setDaemon(daemon);
+			if (t.getPriority() != Thread.NORM_PRIORITY){
+				t.setPriority(Thread.NORM_PRIORITY);
+			}
+			return t;
+		}
+	}
+}
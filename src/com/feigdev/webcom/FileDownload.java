@@ -0,0 +1,236 @@
+package com.feigdev.webcom;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+
+import android.util.Log;
+
+/**
+ * Streams a response body straight into a file, for WebModel.BODY_FILE.
+ *
+ * The body goes to target.part first and is moved to the target once it is
+ * complete. If a download is interrupted, the next one for the same target
+ * asks for the rest only, with a Range header, guarded by If-Range with the
+ * ETag or Last-Modified of the first attempt. If the file changed on the
+ * server in the meantime, the server sends it whole and we start over.
+ *
+ * @author emil10001
+ *
+ */
+class FileDownload {
+	public static final String TAG = "FileDownload";
+	private static final int BUFFER_SIZE = 16384;
+
+	private final File target;
+	private final File part;
+	private final File validatorFile;
+	private long resumeOffset;
+
+	FileDownload(File target){
+		this.target = target;
+		this.part = new File(target.getPath() + ".part");
+		this.validatorFile = new File(target.getPath() + ".part.validator");
+	}
+
+	/**
+	 * Asks for the missing bytes only, if a resumable partial file exists.
+	 */
+	void prepare(HttpGet request){
+		resumeOffset = 0;
+		String validator = readValidator();
+		if (validator != null && part.length() > 0){
+			resumeOffset = part.length();
+			request.setHeader("Range", "bytes=" + resumeOffset + "-");
+			request.setHeader("If-Range", validator);
+			if(Constants.VERBOSE){ Log.i(TAG,"resuming " + target + " at " + resumeOffset); }
+		}
+	}
+
+	/**
+	 * The server can't give us what we asked for, forget the partial file
+	 * so the next attempt starts over.
+	 */
+	void discard(){
+		part.delete();
+		validatorFile.delete();
+	}
+
+	/**
+	 * Writes the body to the part file and moves it into place. A body that
+	 * ends before the length the server announced stays in the part file, so
+	 * the next attempt can resume it.
+	 */
+	void write(HttpResponse httpResponse, HttpEntity entity, SimpleResponse response) throws IOException {
+		long offset = 0;
+		if (httpResponse.getStatusLine().getStatusCode() == 206){
+			if (resumeOffset == 0 || rangeStart(httpResponse) != resumeOffset){
+				discard();
+				throw new IOException("unexpected Content-Range");
+			}
+			offset = resumeOffset;
+		}
+		else {
+			// a fresh copy, remember how to resume it
+			writeValidator(httpResponse);
+		}
+
+		long written = 0;
+		RandomAccessFile file = new RandomAccessFile(part, "rw");
+		try {
+			FileChannel out = file.getChannel();
+			out.truncate(offset);
+			out.position(offset);
+			if (entity != null){
+				InputStream in = entity.getContent();
+				byte[] pooled = BufferPool.get().acquire(BUFFER_SIZE);
+				try {
+					ReadableByteChannel src = Channels.newChannel(in);
+					ByteBuffer buffer = ByteBuffer.wrap(pooled);
+					while (src.read(buffer) != -1){
+						buffer.flip();
+						while (buffer.hasRemaining()){
+							written += out.write(buffer);
+						}
+						buffer.clear();
+					}
+				} finally {
+					BufferPool.get().release(pooled);
+					in.close();
+				}
+			}
+			out.force(false);
+		} finally {
+			file.close();
+		}
+
+		long expected = expectedLength(httpResponse, offset);
+		if (expected >= 0 && offset + written != expected){
+			throw new IOException("download ended at " + (offset + written) + " of " + expected + " bytes");
+		}
+
+		if (target.exists() && !target.delete()){
+			throw new IOException("could not replace " + target);
+		}
+		if (!part.renameTo(target)){
+			throw new IOException("could not move " + part + " to " + target);
+		}
+		validatorFile.delete();
+
+		response.setFile(target);
+		response.setBytesReceived(written);
+		response.setResumeOffset(offset);
+	}
+
+	/**
+	 * @return the size of the whole file, from the Content-Range total of a
+	 * 206 or the Content-Length of a 200, or -1 if the server did not say
+	 */
+	private static long expectedLength(HttpResponse httpResponse, long offset){
+		Header range = httpResponse.getFirstHeader("Content-Range");
+		if (httpResponse.getStatusLine().getStatusCode() == 206 && range != null){
+			String value = range.getValue();
+			int slash = value.indexOf('/');
+			try {
+				if (slash >= 0 && !value.substring(slash + 1).trim().equals("*")){
+					return Long.parseLong(value.substring(slash + 1).trim());
+				}
+			} catch (NumberFormatException e) {
+				// fall back to the Content-Length
+			}
+		}
+		Header length = httpResponse.getFirstHeader("Content-Length");
+		if (length == null){
+			return -1;
+		}
+		try {
+			return offset + Long.parseLong(length.getValue().trim());
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * @return the first byte of a "Content-Range: bytes first-last/total" header, or -1
+	 */
+	private static long rangeStart(HttpResponse httpResponse){
+		Header range = httpResponse.getFirstHeader("Content-Range");
+		if (range == null){
+			return -1;
+		}
+		String value = range.getValue().trim();
+		if (value.startsWith("bytes")){
+			value = value.substring(5).trim();
+		}
+		int dash = value.indexOf('-');
+		try {
+			return dash < 0 ? -1 : Long.parseLong(value.substring(0, dash).trim());
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Keeps a strong ETag, or else Last-Modified, next to the part file.
+	 * Weak ETags can't be used with If-Range.
+	 */
+	private void writeValidator(HttpResponse httpResponse){
+		String validator = null;
+		Header etag = httpResponse.getFirstHeader("ETag");
+		if (etag != null && !etag.getValue().startsWith("W/")){
+			validator = etag.getValue();
+		}
+		else {
+			Header modified = httpResponse.getFirstHeader("Last-Modified");
+			if (modified != null){
+				validator = modified.getValue();
+			}
+		}
+		if (validator == null){
+			validatorFile.delete();
+			return;
+		}
+		try {
+			FileWriter out = new FileWriter(validatorFile);
+			try {
+				out.write(validator);
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			// not being able to resume later is no reason to fail now
+			if(Constants.VERBOSE){ e.printStackTrace(); }
+			validatorFile.delete();
+		}
+	}
+
+	private String readValidator(){
+		if (!validatorFile.exists()){
+			return null;
+		}
+		try {
+			BufferedReader in = new BufferedReader(new FileReader(validatorFile));
+			try {
+				String validator = in.readLine();
+				return validator == null || validator.length() == 0 ? null : validator;
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			return null;
+		}
+	}
+}
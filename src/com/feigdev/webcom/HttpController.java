@@ -1,347 +1,979 @@
 package com.feigdev.webcom;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.concurrent.RejectedExecutionException;
 
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
 import org.apache.http.NameValuePair;
 import org.apache.http.client.ClientProtocolException;
-import org.apache.http.client.HttpResponseException;
-import org.apache.http.client.ResponseHandler;
 import org.apache.http.client.entity.UrlEncodedFormEntity;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
-import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.protocol.ClientContext;
 import org.apache.http.cookie.Cookie;
 import org.apache.http.entity.mime.MultipartEntity;
+import org.apache.http.impl.client.AbstractHttpClient;
 import org.apache.http.impl.client.BasicCookieStore;
-import org.apache.http.impl.client.BasicResponseHandler;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.params.HttpConnectionParams;
-import org.apache.http.params.HttpParams;
+import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
 
 import android.util.Log;
 
-import org.apache.http.impl.client.AbstractHttpClient;
-
 /***
  * This class does the actual work of the HttpController.
- * It creates http clients and executes http requests.
- * 
+ * It executes http requests on the shared client of its profile,
+ * see SharedHttpClient.
+ *
+ * The client is shared between threads, so the cookies of each request
+ * are kept in that request's own HttpContext instead of in the client.
+ *
+ * An HttpController runs one request at a time, abort() stops it.
+ *
  * @author emil10001
  *
  */
 public class HttpController {
 	public static final String TAG = "HttpController";
-    private AbstractHttpClient mHttpClient;
-    private ResponseHandler<String> responseHandler;
+	private final AbstractHttpClient mHttpClient;
+	private final String profile;
+	private StreamHandler streamHandler;
+	private int bodyType = WebModel.BODY_STRING;
+	private FileDownload download;
+	private long maxResponseBytes;
+	private boolean compression = true;
+	private ProgressListener progressListener;
+	private long progressInterval = DEFAULT_PROGRESS_INTERVAL;
+	private ResponseCache responseCache;
+	private int cachePolicy = WebModel.CACHE_DEFAULT;
+	private long maxStale = -1;
+	private long minFresh = -1;
+	private long staleWhileRevalidate = -1;
+	private long staleIfError = -1;
+	private Dispatcher dispatcher;
+	private static volatile long defaultMaxResponseBytes;
+	private static volatile ResponseCache defaultResponseCache;
+	// urls with a background refresh in flight
+	private static final HashSet<String> refreshing = new HashSet<String>();
+	// set while a GET runs whose response may go into the cache
+	private String storeKey;
+	private byte[] storeBody;
+	private String storeCharset;
+	// the stale entry a conditional GET asks the server about
+	private CacheEntry revalidating;
+	// the stale entry to fall back on if the network fails
+	private CacheEntry staleEntry;
+	private volatile HttpUriRequest currentRequest;
+	private volatile boolean aborted;
 	public static final int TIMEOUT = 10000;
+	public static final long DEFAULT_PROGRESS_INTERVAL = 250;
+	// how a cached entry can answer a request
+	private static final int UNUSABLE = -1;
+	private static final int FRESH = 0;
+	private static final int STALE = 1;
+
+
+	public HttpController(){
+		this(SharedHttpClient.DEFAULT_PROFILE);
+	}
+
+	/**
+	 * @param profile the SharedHttpClient profile to send requests with
+	 */
+	public HttpController(String profile){
+		if(Constants.VERBOSE){ Log.i(TAG,"Network Handler initialized"); }
+		this.profile = profile;
+		mHttpClient = SharedHttpClient.get(profile);
+	}
+
+	/**
+	 * @deprecated the client is shared by every controller of a profile and
+	 * comes from SharedHttpClient, cookies are passed with each request. This
+	 * only makes sure the profile's client exists.
+	 */
+	@Deprecated
+	public void maybeCreateHttpClient(BasicCookieStore cookies){
+		SharedHttpClient.get(profile);
+	}
+
+	/**
+	 * Connects to the url, gets the results
+	 *
+	 * @param url Full web address to get from
+	 * @param contentType what you expect to get back, text/html or text/json
+	 * @return SimpleResponse a simple object that describes the response.
+	 * SimpleResponse.message contains the actual content that was returned
+	 * or the error message
+	 */
+	public SimpleResponse get(String url, String contentType, int id, BasicCookieStore cookie,ArrayList<NameValuePair> headParams) {
+		SimpleResponse response = newResponse(url, contentType, id);
+		if (url.equals("")){
+			response.setStatus(SimpleResponse.FAIL);
+			response.setMessage("null url");
+			return response;
+		}
+
+		final HttpGet httpRequest = new HttpGet(url);
+		for (NameValuePair nvp: headParams){
+			httpRequest.setHeader(nvp.getName(), nvp.getValue());
+		}
+		if (download != null){
+			download.prepare(httpRequest);
+		}
+
+		if (lookup(httpRequest, response, cookie)){
+			return response;
+		}
+		return execute(httpRequest, response, cookie);
+	}
+
+	/**
+	 * Connects to the server, performs a post and returns the results
+	 * in a SimpleResponse object.
+	 *
+	 * @param url Full web address to get from
+	 * @param params paramaters built in WebModel
+	 * @param contentType what you expect to get back, text/html or text/json
+	 * @return SimpleResponse a simple object that describes the response.
+	 * SimpleResponse.message contains the actual content that was returned
+	 * or the error message
+	 */
+	public SimpleResponse post(String url, ArrayList<NameValuePair> params, String contentType, int id, BasicCookieStore cookie,ArrayList<NameValuePair> headParams) {
+		SimpleResponse response = newResponse(url, contentType, id);
+		if (url.equals("")){
+			response.setStatus(SimpleResponse.FAIL);
+			response.setMessage("null url");
+			return response;
+		}
+
+		HttpEntity entity = formEntity(params);
+		if(Constants.VERBOSE){ Log.i(TAG,"Posting to: " + url + params); }
+
+		final HttpPost post = new HttpPost(url);
+		post.addHeader(entity.getContentType());
+		for (NameValuePair nvp: headParams){
+			post.setHeader(nvp.getName(), nvp.getValue());
+		}
+		post.setEntity(progress(entity, id, ProgressListener.UPLOAD));
+
+		return execute(post, response, cookie);
+	}
+
+	/**
+	 * Connects to the server, performs a post with basic authentication
+	 * and returns the results in a SimpleResponse object.
+	 *
+	 * @param url Full web address to get from
+	 * @param params paramaters built in WebModel
+	 * @param contentType what you expect to get back, text/html or text/json
+	 * @return SimpleResponse a simple object that describes the response.
+	 * SimpleResponse.message contains the actual content that was returned
+	 * or the error message
+	 */
+	public SimpleResponse postAuth(String url, ArrayList<NameValuePair> params, String username, String password, String contentType, int id, BasicCookieStore cookie,ArrayList<NameValuePair> headParams) {
+		SimpleResponse response = newResponse(url, contentType, id);
+		if (url.equals("")){
+			response.setStatus(SimpleResponse.FAIL);
+			response.setMessage("null url");
+			return response;
+		}
+
+		HttpEntity entity = formEntity(params);
+		if(Constants.VERBOSE){ Log.i(TAG,"Posting to: " + url + params); }
+
+		final HttpPost post = new HttpPost(url);
+		post.addHeader("Authorization","Basic " + Base64.encodeBytes((username+":"+password).getBytes()));
+		for (NameValuePair nvp: headParams){
+			post.setHeader(nvp.getName(), nvp.getValue());
+		}
+		post.setEntity(progress(entity, id, ProgressListener.UPLOAD));
+
+		return execute(post, response, cookie);
+	}
+
+	/**
+	 * Connects to the server, posts a multipart entity and returns the results
+	 * in a SimpleResponse object.
+	 *
+	 * @param url Full web address to get from
+	 * @param entity multipart body built in WebModel
+	 * @param contentType what you expect to get back, text/html or text/json
+	 * @return SimpleResponse a simple object that describes the response.
+	 * SimpleResponse.message contains the actual content that was returned
+	 * or the error message
+	 */
+	public SimpleResponse postFile(String url, MultipartEntity entity, String contentType, int id, BasicCookieStore cookie,ArrayList<NameValuePair> headParams) {
+		SimpleResponse response = newResponse(url, contentType, id);
+		if (url.equals("")){
+			response.setStatus(SimpleResponse.FAIL);
+			response.setMessage("null url");
+			return response;
+		}
+
+		if(Constants.VERBOSE){ Log.i(TAG,"Posting to: " + url ); }
+
+		final HttpPost post = new HttpPost(url);
+		post.addHeader(entity.getContentType());
+		for (NameValuePair nvp: headParams){
+			post.setHeader(nvp.getName(), nvp.getValue());
+		}
+		post.setEntity(progress(entity, id, ProgressListener.UPLOAD));
+
+		return execute(post, response, cookie);
+	}
+
+	/**
+	 * Aborts the request in flight, or the next one if none has started yet.
+	 * The aborted request returns a SimpleResponse.CANCELLED response and
+	 * its connection is released right away.
+	 */
+	public void abort(){
+		aborted = true;
+		HttpUriRequest request = currentRequest;
+		if (request != null){
+			request.abort();
+		}
+	}
+
+	public boolean isAborted(){
+		return aborted;
+	}
+
+	public int getBodyType(){
+		return bodyType;
+	}
+
+	/**
+	 * @param bodyType WebModel.BODY_STRING, WebModel.BODY_BYTES,
+	 * WebModel.BODY_FILE or WebModel.BODY_JSON
+	 */
+	public void setBodyType(int bodyType){
+		this.bodyType = bodyType;
+	}
 
-    
-    public HttpController(){
-    	if(Constants.VERBOSE){ Log.i(TAG,"Network Handler initialized"); }
-    }
-	
-    /**
-     * Configures the httpClient to connect to the URL provided.
-     */
-    public void maybeCreateHttpClient(BasicCookieStore cookies) {
-        if (mHttpClient == null) {
-        	if(Constants.VERBOSE){ Log.i(TAG,"maybeCreateHttpClient()"); }
-            mHttpClient = new DefaultHttpClient();
-            
-            if (cookies != null){
-	            for( Cookie cookie: cookies.getCookies()){
-	            	mHttpClient.getCookieStore().addCookie(cookie);
-	            	if (Constants.VERBOSE){Log.d(TAG,"mHttpClient.addCookie " + cookie.getDomain() + "," + cookie.getName() + "," + cookie.getValue());}
-	            }
-            }
-            else if (Constants.VERBOSE){ Log.d(TAG,"mHttpClient no cookies"); }
-            
-            responseHandler = new BasicResponseHandler();
-            final HttpParams params = mHttpClient.getParams();
-//            mHttpClient.getParams().setParameter("User-Agent", userAgent);
-            
-//            if (Constants.VERBOSE){ Log.d(TAG,"mHttpClient userAgent " + userAgent); }
-            HttpConnectionParams.setConnectionTimeout(params, TIMEOUT);
-            HttpConnectionParams.setSoTimeout(params, TIMEOUT);
-            ConnManagerParams.setTimeout(params, TIMEOUT);
-        }
-    }
-   
-    /**
-     * Connects to the url, gets the results
-     * 
-     * @param url Full web address to get from
-     * @param contentType what you expect to get back, text/html or text/json
-     * @return SimpleResponse a simple object that describes the response. 
-     * SimpleResponse.message contains the actual content that was returned
-     * or the error message
-     */
-    public SimpleResponse get(String url, String contentType, int id, BasicCookieStore cookie,ArrayList<NameValuePair> headParams) { 
-    	SimpleResponse response = new SimpleResponse();
-    	response.setUrl(url);
-    	response.setId(id);
-    	response.setContentType(contentType);
-    	if (url.equals("")){
-    		response.setStatus(SimpleResponse.FAIL);
-    		response.setMessage("null url");
-        	return response;
-        }
-        
-        final HttpGet httpRequest = new HttpGet(url);
-        for (NameValuePair nvp: headParams){
-        	httpRequest.setHeader(nvp.getName(), nvp.getValue());
-        }
-        
-        maybeCreateHttpClient(cookie);
-                
-        try {
-        	response.setMessage(mHttpClient.execute(httpRequest, responseHandler));
-        	response.setCookies((BasicCookieStore)mHttpClient.getCookieStore());
-        	response.setStatus(SimpleResponse.PASS);
-        	return response;
-        } catch (final HttpResponseException e) {
-        	if(Constants.VERBOSE){ e.printStackTrace(); }
-        	response.setStatus(SimpleResponse.FAIL);
-        	response.setMessage("Site not found");
-        	return response;
-        } catch (ClientProtocolException e) {
-        	if(Constants.VERBOSE){ e.printStackTrace(); }
-        	response.setStatus(SimpleResponse.FAIL);
-        	response.setMessage("Client Protocol Exception");
-        	return response;
-        } catch (IOException e) {
+	/**
+	 * @param file where a WebModel.BODY_FILE GET saves the body, resuming an
+	 * earlier interrupted download of the same file if possible
+	 */
+	public void setDownloadFile(File file){
+		download = file == null ? null : new FileDownload(file);
+	}
+
+	public long getMaxResponseBytes(){
+		return maxResponseBytes;
+	}
+
+	/**
+	 * @param maxResponseBytes largest body this controller will read, 0 to use
+	 * getDefaultMaxResponseBytes(). Bigger bodies are aborted and reported as
+	 * SimpleResponse.TOO_LARGE.
+	 */
+	public void setMaxResponseBytes(long maxResponseBytes){
+		this.maxResponseBytes = maxResponseBytes;
+	}
+
+	public static long getDefaultMaxResponseBytes(){
+		return defaultMaxResponseBytes;
+	}
+
+	/**
+	 * @param maxBytes largest body any request will read unless it sets its
+	 * own limit, 0 for no limit
+	 */
+	public static void setDefaultMaxResponseBytes(long maxBytes){
+		defaultMaxResponseBytes = maxBytes;
+	}
+
+	public boolean isCompression(){
+		return compression;
+	}
+
+	/**
+	 * @param compression false to stop asking for gzip or deflate bodies.
+	 * Compressed bodies are still decoded if the server sends them anyway.
+	 */
+	public void setCompression(boolean compression){
+		this.compression = compression;
+	}
+
+	public ProgressListener getProgressListener(){
+		return progressListener;
+	}
+
+	/**
+	 * @param progressListener hears how much of the request body was sent and
+	 * how much of the response body arrived, null for no progress reports
+	 */
+	public void setProgressListener(ProgressListener progressListener){
+		this.progressListener = progressListener;
+	}
+
+	public long getProgressInterval(){
+		return progressInterval;
+	}
+
+	/**
+	 * @param progressInterval least milliseconds between two progress reports
+	 */
+	public void setProgressInterval(long progressInterval){
+		this.progressInterval = progressInterval;
+	}
+
+	/**
+	 * @return the cache this controller uses, its own or else the default one
+	 */
+	public ResponseCache getResponseCache(){
+		return responseCache != null ? responseCache : defaultResponseCache;
+	}
+
+	/**
+	 * @param responseCache cache to answer GETs from and store their responses
+	 * in, null to use getDefaultResponseCache()
+	 */
+	public void setResponseCache(ResponseCache responseCache){
+		this.responseCache = responseCache;
+	}
+
+	public static ResponseCache getDefaultResponseCache(){
+		return defaultResponseCache;
+	}
+
+	/**
+	 * @param cache cache for every controller that has none of its own, null
+	 * for no caching
+	 */
+	public static void setDefaultResponseCache(ResponseCache cache){
+		defaultResponseCache = cache;
+	}
+
+	public int getCachePolicy(){
+		return cachePolicy;
+	}
+
+	/**
+	 * @param cachePolicy WebModel.CACHE_DEFAULT, WebModel.CACHE_NETWORK_ONLY,
+	 * WebModel.CACHE_ONLY, WebModel.CACHE_ELSE_NETWORK or
+	 * WebModel.CACHE_FORCE_REFRESH
+	 */
+	public void setCachePolicy(int cachePolicy){
+		this.cachePolicy = cachePolicy;
+	}
+
+	public long getMaxStale(){
+		return maxStale;
+	}
+
+	/**
+	 * @param seconds how stale a cached response may be and still be answered
+	 * with, like a max-stale request directive. -1 for the request's own
+	 * Cache-Control.
+	 */
+	public void setMaxStale(long seconds){
+		this.maxStale = seconds;
+	}
+
+	public long getMinFresh(){
+		return minFresh;
+	}
+
+	/**
+	 * @param seconds how much longer a cached response must stay fresh to be
+	 * answered with, like a min-fresh request directive. -1 for the
+	 * request's own Cache-Control.
+	 */
+	public void setMinFresh(long seconds){
+		this.minFresh = seconds;
+	}
+
+	public long getStaleWhileRevalidate(){
+		return staleWhileRevalidate;
+	}
+
+	/**
+	 * @param seconds how long past its freshness a cached response may still be
+	 * answered with right away, while a refresh runs in the background. -1,
+	 * the default, allows only what the response's own stale-while-revalidate
+	 * says.
+	 */
+	public void setStaleWhileRevalidate(long seconds){
+		this.staleWhileRevalidate = seconds;
+	}
+
+	public long getStaleIfError(){
+		return staleIfError;
+	}
+
+	/**
+	 * @param seconds how long past its freshness a cached response may be
+	 * answered with when the network request fails. -1, the default, allows
+	 * only what the response's own stale-if-error says.
+	 */
+	public void setStaleIfError(long seconds){
+		this.staleIfError = seconds;
+	}
+
+	/**
+	 * @return the Dispatcher background refreshes run on, Dispatcher.getDefault()
+	 * unless one was set
+	 */
+	public Dispatcher getDispatcher(){
+		return dispatcher != null ? dispatcher : Dispatcher.getDefault();
+	}
+
+	/**
+	 * @param dispatcher run background refreshes on the given Dispatcher, so
+	 * they count against the same limits as the request, or null for the
+	 * default one
+	 */
+	public void setDispatcher(Dispatcher dispatcher){
+		this.dispatcher = dispatcher;
+	}
+
+	public StreamHandler getStreamHandler(){
+		return streamHandler;
+	}
+
+	/**
+	 * @param streamHandler receives the body of successful responses as a stream
+	 * while it arrives, instead of having it collected into the message. Null
+	 * to go back to collecting it.
+	 */
+	public void setStreamHandler(StreamHandler streamHandler){
+		this.streamHandler = streamHandler;
+	}
+
+	private SimpleResponse newResponse(String url, String contentType, int id){
+		SimpleResponse response = new SimpleResponse();
+		response.setUrl(url);
+		response.setId(id);
+		response.setContentType(contentType);
+		return response;
+	}
+
+	private HttpEntity formEntity(ArrayList<NameValuePair> params){
+		try {
+			return new UrlEncodedFormEntity(params);
+		} catch (final UnsupportedEncodingException e) {
+			// this should never happen.
+			throw new AssertionError(e);
+		}
+	}
+
+	private HttpEntity progress(HttpEntity entity, int id, int direction){
+		if (progressListener == null){
+			return entity;
+		}
+		return new ProgressEntity(entity, progressListener, id, direction, progressInterval);
+	}
+
+	/**
+	 * Sends the request on the shared client and fills in the response.
+	 * The cookies only live in this request's context, so concurrent requests
+	 * never see each other's cookies.
+	 */
+	private SimpleResponse execute(HttpUriRequest request, SimpleResponse response, BasicCookieStore cookie){
+		BasicCookieStore cookieStore = copyCookies(cookie);
+		HttpContext context = new BasicHttpContext();
+		context.setAttribute(ClientContext.COOKIE_STORE, cookieStore);
+
+		if (compression && download == null && !request.containsHeader("Accept-Encoding")){
+			request.setHeader("Accept-Encoding", "gzip, deflate");
+		}
+
+		if (Constants.VERBOSE){
+			Log.d(TAG,"scheme= " + request.getURI().getScheme());
+			Log.d(TAG,"host= " + request.getURI().getHost());
+			Log.d(TAG,"path= " + request.getURI().getPath());
+			for(Header h : request.getAllHeaders()){
+				Log.d(TAG, h.getName() + "=" + h.getValue());
+			}
+		}
+
+		currentRequest = request;
+		if (aborted){
+			return cancelled(response);
+		}
+
+		long requestTime = System.currentTimeMillis();
+		try {
+			HttpResponse httpResponse = mHttpClient.execute(request, context);
+			HttpEntity entity = httpResponse.getEntity();
+			int code = httpResponse.getStatusLine().getStatusCode();
+			response.setStatusCode(code);
+			response.setHeaders(httpResponse.getAllHeaders());
+			response.setSource(SimpleResponse.SOURCE_NETWORK);
+			if (code == 304 && revalidating != null){
+				if (entity != null){
+					entity.consumeContent();
+				}
+				return notModified(httpResponse, response, cookieStore, requestTime);
+			}
+			if (code >= 300){
+				if (Constants.VERBOSE){ Log.d(TAG, httpResponse.getStatusLine().toString()); }
+				if (code == 416 && download != null){
+					download.discard();
+				}
+				if (entity != null){
+					entity.consumeContent();
+				}
+				if (code >= 500 && staleIfError(response, cookieStore)){
+					return response;
+				}
+				response.setStatus(SimpleResponse.FAIL);
+				response.setMessage("Site not found");
+				return response;
+			}
+			readBody(httpResponse, response);
+			response.setCookies(cookieStore);
+			response.setStatus(SimpleResponse.PASS);
+			if (storeKey != null){
+				store(httpResponse, requestTime);
+			}
+			else if (!(request instanceof HttpGet) && getResponseCache() != null){
+				// whatever was cached for the url may have changed
+				getResponseCache().remove(request.getURI().toString());
+			}
+			return response;
+		} catch (ResponseTooLargeException e) {
 			if(Constants.VERBOSE){ e.printStackTrace(); }
-        	response.setStatus(SimpleResponse.FAIL);
-        	response.setMessage("IO Exception");
-        	return response;
+			// don't read the rest of it just to reuse the connection
+			request.abort();
+			response.setStatus(SimpleResponse.TOO_LARGE);
+			response.setMessage("Response too large");
+			return response;
+		} catch (ClientProtocolException e) {
+			if(Constants.VERBOSE){ e.printStackTrace(); }
+			request.abort();
+			if (staleIfError(response, cookieStore)){
+				return response;
+			}
+			response.setStatus(SimpleResponse.FAIL);
+			response.setMessage("Client Protocol Exception");
+			return response;
+		} catch (IOException e) {
+			if(Constants.VERBOSE){ e.printStackTrace(); }
+			if (aborted){
+				return cancelled(response);
+			}
+			// the body may be half read, don't hand the connection back to the pool
+			request.abort();
+			if (staleIfError(response, cookieStore)){
+				return response;
+			}
+			response.setStatus(SimpleResponse.FAIL);
+			response.setMessage("IO Exception");
+			return response;
+		} catch (RuntimeException e) {
+			// a StreamHandler that threw, the connection is in an unknown state
+			request.abort();
+			throw e;
 		} finally {
-        	if(Constants.VERBOSE){ Log.i(TAG, "get finished"); }
-        }
-        
-    }
-    
-	  /**
-	  * Connects to the server, performs a post and returns the results 
-	  * in a SimpleResponse object. 
-	  * 
-	  * @param url Full web address to get from
-	  * @param params paramaters built in WebModel
-      * @param contentType what you expect to get back, text/html or text/json
-      * @return SimpleResponse a simple object that describes the response. 
-      * SimpleResponse.message contains the actual content that was returned
-      * or the error message
-      */
-	public SimpleResponse post(String url, ArrayList<NameValuePair> params, String contentType, int id, BasicCookieStore cookie,ArrayList<NameValuePair> headParams) { 
-		SimpleResponse response = new SimpleResponse();
-	    response.setUrl(url);
-	    response.setId(id);
-	    response.setContentType(contentType);
-	    if (url.equals("")){
-	    	response.setStatus(SimpleResponse.FAIL);
-	    	response.setMessage("null url");
-	       	return response;
-	    }
-	 		     
-	    HttpEntity entity = null;
-	    try {
-	        entity = new UrlEncodedFormEntity(params);
-	    } catch (final UnsupportedEncodingException e) {
-	        // this should never happen.
-	        throw new AssertionError(e);
-	    }
-	    if(Constants.VERBOSE){ Log.i(TAG,"Posting to: " + url + params); }
-	     
-	    final HttpPost post = new HttpPost(url);
-	    
-	    post.addHeader(entity.getContentType());
-	    for (NameValuePair nvp: headParams){
-	    	post.setHeader(nvp.getName(), nvp.getValue());
-        }
-	    post.setEntity(entity);
-	    if (Constants.VERBOSE){
-	    	Log.d(TAG,"scheme= " + post.getURI().getScheme());
-	    	Log.d(TAG,"host= " + post.getURI().getHost());
-	    	Log.d(TAG,"path= " + post.getURI().getPath());
-	    	for(Header h : post.getAllHeaders()){
-	    		Log.d(TAG, h.getName() + "=" + h.getValue());
-	    	}
-	    }
-	    maybeCreateHttpClient(cookie);
-	
-	    try {
-	    	String resp = mHttpClient.execute(post, responseHandler);
-	    	if (Constants.VERBOSE){Log.d(TAG,"response="+resp);
-	    	Log.d(TAG,"responseHandler="+responseHandler.toString());
-	    	}
-	    	response.setMessage(resp);
-	    	response.setCookies((BasicCookieStore)mHttpClient.getCookieStore());
-    		response.setStatus(SimpleResponse.PASS);
-    		return response;
-	    } catch (final HttpResponseException e) {
-	    	if(Constants.VERBOSE){ e.printStackTrace(); 	}
-	       	response.setStatus(SimpleResponse.FAIL);
-	       	response.setMessage("Site not found");
-	       	return response;
-	    } catch (ClientProtocolException e) {
-	       	if(Constants.VERBOSE){ e.printStackTrace(); }
-	       	response.setStatus(SimpleResponse.FAIL);
-	       	response.setMessage("Client Protocol Exception");
-	       	return response;
-	    } catch (IOException e) {
-			if(Constants.VERBOSE){ e.printStackTrace(); 	}
-	       	response.setStatus(SimpleResponse.FAIL);
-	       	response.setMessage("IO Exception");
-	       	return response;
-	    } finally {
-	    	if(Constants.VERBOSE){ Log.i(TAG, "post completing"); }
-	    }
-	}
-	
-	  /**
-		  * Connects to the server, performs a post and returns the results 
-		  * in a SimpleResponse object. 
-		  * 
-		  * @param url Full web address to get from
-		  * @param params paramaters built in WebModel
-	      * @param contentType what you expect to get back, text/html or text/json
-	      * @return SimpleResponse a simple object that describes the response. 
-	      * SimpleResponse.message contains the actual content that was returned
-	      * or the error message
-	      */
-		public SimpleResponse postAuth(String url, ArrayList<NameValuePair> params, String username, String password, String contentType, int id, BasicCookieStore cookie,ArrayList<NameValuePair> headParams) { 
-			SimpleResponse response = new SimpleResponse();
-		    response.setUrl(url);
-		    response.setId(id);
-		    response.setContentType(contentType);
-		    if (url.equals("")){
-		    	response.setStatus(SimpleResponse.FAIL);
-		    	response.setMessage("null url");
-		       	return response;
-		    }
-		 		     
-		    HttpEntity entity = null;
-		    try {
-		        entity = new UrlEncodedFormEntity(params);
-		    } catch (final UnsupportedEncodingException e) {
-		        // this should never happen.
-		        throw new AssertionError(e);
-		    }
-		    if(Constants.VERBOSE){ Log.i(TAG,"Posting to: " + url + params); }
-		     
-		    final HttpPost post = new HttpPost(url);
-		    post.addHeader("Authorization","Basic " + Base64.encodeBytes((username+":"+password).getBytes()));
-		    for (NameValuePair nvp: headParams){
-		    	post.setHeader(nvp.getName(), nvp.getValue());
-	        }
-		    post.setEntity(entity);
-		    
-		    if (Constants.VERBOSE){
-		    	Log.d(TAG,"scheme= " + post.getURI().getScheme());
-		    	Log.d(TAG,"host= " + post.getURI().getHost());
-		    	Log.d(TAG,"path= " + post.getURI().getPath());
-		    	for(Header h : post.getAllHeaders()){
-		    		Log.d(TAG, h.getName() + "=" + h.getValue());
-		    	}
-		    }
-		    maybeCreateHttpClient(cookie);
-		
-		    try {
-		    	String resp = mHttpClient.execute(post, responseHandler);
-		    	if (Constants.VERBOSE){Log.d(TAG,"response="+resp);
-		    	Log.d(TAG,"responseHandler="+responseHandler.toString());}
-		    	response.setMessage(resp);
-		    	response.setCookies((BasicCookieStore)mHttpClient.getCookieStore());
-	    		response.setStatus(SimpleResponse.PASS);
-	    		return response;
-		    } catch (final HttpResponseException e) {
-		    	if(Constants.VERBOSE){ e.printStackTrace(); 	}
-		       	response.setStatus(SimpleResponse.FAIL);
-		       	response.setMessage("Site not found");
-		       	return response;
-		    } catch (ClientProtocolException e) {
-		       	if(Constants.VERBOSE){ e.printStackTrace(); }
-		       	response.setStatus(SimpleResponse.FAIL);
-		       	response.setMessage("Client Protocol Exception");
-		       	return response;
-		    } catch (IOException e) {
-				if(Constants.VERBOSE){ e.printStackTrace(); 	}
-		       	response.setStatus(SimpleResponse.FAIL);
-		       	response.setMessage("IO Exception");
-		       	return response;
-		    } finally {
-		    	if(Constants.VERBOSE){ Log.i(TAG, "post completing"); }
-		    }
-		}
-		  /**
-		  * Connects to the server, performs a post and returns the results 
-		  * in a SimpleResponse object. 
-		  * 
-		  * @param url Full web address to get from
-		  * @param params paramaters built in WebModel
-	      * @param contentType what you expect to get back, text/html or text/json
-	      * @return SimpleResponse a simple object that describes the response. 
-	      * SimpleResponse.message contains the actual content that was returned
-	      * or the error message
-	      */
-		public SimpleResponse postFile(String url, MultipartEntity entity, String contentType, int id, BasicCookieStore cookie,ArrayList<NameValuePair> headParams) { 
-			SimpleResponse response = new SimpleResponse();
-		    response.setUrl(url);
-		    response.setId(id);
-		    response.setContentType(contentType);
-		    if (url.equals("")){
-		    	response.setStatus(SimpleResponse.FAIL);
-		    	response.setMessage("null url");
-		       	return response;
-		    }
-		 		     
-		    if(Constants.VERBOSE){ Log.i(TAG,"Posting to: " + url ); }
-		     
-		    final HttpPost post = new HttpPost(url);
-		    
-		    post.addHeader(entity.getContentType());
-		    for (NameValuePair nvp: headParams){
-		    	post.setHeader(nvp.getName(), nvp.getValue());
-	        }
-		    post.setEntity(entity);
-		    if (Constants.VERBOSE){
-		    	Log.d(TAG,"scheme= " + post.getURI().getScheme());
-		    	Log.d(TAG,"host= " + post.getURI().getHost());
-		    	Log.d(TAG,"path= " + post.getURI().getPath());
-		    	for(Header h : post.getAllHeaders()){
-		    		Log.d(TAG, h.getName() + "=" + h.getValue());
-		    	}
-		    }
-		    maybeCreateHttpClient(cookie);
-		
-		    try {
-		    	String resp = mHttpClient.execute(post, responseHandler);
-		    	if (Constants.VERBOSE){Log.d(TAG,"response="+resp);
-		    	Log.d(TAG,"responseHandler="+responseHandler.toString());}
-		    	response.setMessage(resp);
-		    	response.setCookies((BasicCookieStore)mHttpClient.getCookieStore());
-	    		response.setStatus(SimpleResponse.PASS);
-	    		return response;
-		    } catch (final HttpResponseException e) {
-		    	if(Constants.VERBOSE){ e.printStackTrace(); 	}
-		       	response.setStatus(SimpleResponse.FAIL);
-		       	response.setMessage("Site not found");
-		       	return response;
-		    } catch (ClientProtocolException e) {
-		       	if(Constants.VERBOSE){ e.printStackTrace(); }
-		       	response.setStatus(SimpleResponse.FAIL);
-		       	response.setMessage("Client Protocol Exception");
-		       	return response;
-		    } catch (IOException e) {
-				if(Constants.VERBOSE){ e.printStackTrace(); 	}
-		       	response.setStatus(SimpleResponse.FAIL);
-		       	response.setMessage("IO Exception");
-		       	return response;
-		    } finally {
-		    	if(Constants.VERBOSE){ Log.i(TAG, "post completing"); }
-		    }
-		} 
+			currentRequest = null;
+			storeKey = null;
+			storeBody = null;
+			storeCharset = null;
+			revalidating = null;
+			staleEntry = null;
+			if(Constants.VERBOSE){ Log.i(TAG, request.getMethod() + " finished"); }
+		}
+	}
+
+	/**
+	 * Reads the entity into the response's message or bytes, or hands it to
+	 * the StreamHandler or the download file without buffering it. A gzip or
+	 * deflate body is decoded on the way, the size limit applies to the
+	 * decoded bytes.
+	 */
+	private void readBody(HttpResponse httpResponse, SimpleResponse response) throws IOException {
+		HttpEntity entity = httpResponse.getEntity();
+		DecodingEntity decoding = null;
+		if (entity != null){
+			entity = progress(entity, response.getId(), ProgressListener.DOWNLOAD);
+			long max = maxResponseBytes > 0 ? maxResponseBytes : getDefaultMaxResponseBytes();
+			if (max > 0 && entity.getContentLength() > max){
+				throw new ResponseTooLargeException(max);
+			}
+			// a download keeps the bytes as sent, its Range offsets count those
+			if (download == null){
+				decoding = new DecodingEntity(entity);
+				entity = decoding;
+			}
+			if (max > 0){
+				entity = new LimitedEntity(entity, max);
+			}
+		}
+		try {
+			consume(httpResponse, entity, response);
+		} finally {
+			if (decoding != null){
+				// a body cut off at the size limit is never closed
+				decoding.releaseDecoder();
+				response.setCompressedBytes(decoding.getEncodedCount());
+				response.setDecompressedBytes(decoding.getDecodedCount());
+				if (Constants.VERBOSE && decoding.isDecoding()){
+					Log.d(TAG, "decoded " + decoding.getEncodedCount() + " to " + decoding.getDecodedCount() + " bytes");
+				}
+			}
+		}
+	}
+
+	private void consume(HttpResponse httpResponse, HttpEntity entity, SimpleResponse response) throws IOException {
+		if (bodyType == WebModel.BODY_FILE && download != null){
+			download.write(httpResponse, entity, response);
+			return;
+		}
+		if (entity == null){
+			return;
+		}
+		if (streamHandler != null){
+			InputStream in = entity.getContent();
+			try {
+				streamHandler.onStream(response, in);
+			} finally {
+				in.close();
+			}
+			return;
+		}
+		String charset = EntityUtils.getContentCharSet(entity);
+		if (bodyType == WebModel.BODY_JSON && storeKey == null){
+			response.setJson(parseJson(entity.getContent(), charset));
+			return;
+		}
+		byte[] body = BodyReader.readFully(entity.getContent(), entity.getContentLength());
+		if (storeKey != null){
+			storeBody = body;
+			storeCharset = charset;
+		}
+		if (bodyType == WebModel.BODY_BYTES){
+			response.setBytes(body);
+			return;
+		}
+		if (bodyType == WebModel.BODY_JSON){
+			// kept as bytes for the cache, parsed from those
+			response.setJson(parseJson(new ByteArrayInputStream(body), charset));
+			return;
+		}
+		// decoded by getMessage(), only if someone asks for the text
+		response.setBody(body, charset);
+		if (Constants.VERBOSE){ Log.d(TAG,"response="+response.getMessage()); }
+	}
+
+	/**
+	 * Answers a GET from the response cache if it holds a copy the request
+	 * and the cache policy accept, and otherwise notes whether the response
+	 * may be stored. A request saying no-store skips the cache, one saying
+	 * no-cache or max-age only takes a copy that satisfies it.
+	 *
+	 * @return true if the response was filled in, from the cache or as a
+	 * failure because WebModel.CACHE_ONLY found nothing
+	 */
+	private boolean lookup(HttpGet request, SimpleResponse response, BasicCookieStore cookie){
+		ResponseCache cache = getResponseCache();
+		CacheControl cc = CacheControl.parse(request.getAllHeaders());
+		boolean cacheOnly = cachePolicy == WebModel.CACHE_ONLY || cc.onlyIfCached;
+		if (cache == null || download != null || streamHandler != null || cc.noStore){
+			return cacheOnly && notCached(response);
+		}
+		String key = request.getURI().toString();
+		if (cachePolicy == WebModel.CACHE_NETWORK_ONLY){
+			storeKey = key;
+			return false;
+		}
+		CacheEntry entry = cache.get(key);
+		if (entry != null && !cc.noCache && cachePolicy != WebModel.CACHE_FORCE_REFRESH){
+			long now = System.currentTimeMillis();
+			int use = usability(entry, cc, now);
+			if (use != UNUSABLE && fromCache(entry, response, copyCookies(cookie))){
+				if(Constants.VERBOSE){ Log.i(TAG,"cache hit " + key); }
+				response.setStale(use == STALE);
+				return true;
+			}
+			// only an entry past its own freshness is in the stale-while-revalidate
+			// window, one turned down for min-fresh goes to the network
+			boolean wantsFresh = this.minFresh > 0 || cc.minFresh > 0;
+			if (cc.maxAge < 0 && !cacheOnly && !wantsFresh && !entry.isFresh(now)
+					&& isStaleUsable(entry, entry.getCacheControl().staleWhileRevalidate, staleWhileRevalidate)
+					&& fromCache(entry, response, copyCookies(cookie))){
+				if(Constants.VERBOSE){ Log.i(TAG,"stale hit " + key); }
+				response.setStale(true);
+				refreshInBackground(key, request, cookie);
+				return true;
+			}
+		}
+		if (cacheOnly){
+			return notCached(response);
+		}
+		storeKey = key;
+		if (entry != null){
+			staleEntry = entry;
+			addValidators(request, entry);
+		}
+		return false;
+	}
+
+	/**
+	 * Checks the entry against the request's max-age, min-fresh and
+	 * max-stale, where setMinFresh() and setMaxStale() win over the request
+	 * headers. WebModel.CACHE_ONLY and WebModel.CACHE_ELSE_NETWORK take an
+	 * entry however stale, unless setMaxStale() limits it, and overrule
+	 * must-revalidate.
+	 *
+	 * @return FRESH, STALE or UNUSABLE
+	 */
+	private int usability(CacheEntry entry, CacheControl cc, long now){
+		long age = entry.getAge(now);
+		if (cc.maxAge >= 0 && age > CacheControl.millis(cc.maxAge)){
+			return UNUSABLE;
+		}
+		long fresh = this.minFresh >= 0 ? this.minFresh : Math.max(0, cc.minFresh);
+		if (entry.isFresh(now) && entry.getFreshnessLifetime() - age >= CacheControl.millis(fresh)){
+			return FRESH;
+		}
+		boolean anyAge = cachePolicy == WebModel.CACHE_ONLY || cachePolicy == WebModel.CACHE_ELSE_NETWORK;
+		long stale = this.maxStale >= 0 ? this.maxStale : anyAge ? CacheControl.MAX_DELTA_SECONDS : cc.maxStale;
+		if (stale < 0 || (!anyAge && entry.getCacheControl().mustRevalidate)
+				|| entry.getStaleness(now) > CacheControl.millis(stale)){
+			return UNUSABLE;
+		}
+		return entry.isFresh(now) ? FRESH : STALE;
+	}
+
+	/**
+	 * The request may only be answered from the cache and it can't be, fail
+	 * the way a proxy would.
+	 */
+	private boolean notCached(SimpleResponse response){
+		response.setStatus(SimpleResponse.FAIL);
+		response.setStatusCode(504);
+		response.setMessage("Not cached");
+		return true;
+	}
+
+	/**
+	 * @param allowed seconds past freshness the response itself allows, -1 if it says nothing
+	 * @param requested seconds past freshness the caller allows, -1 if nothing
+	 * @return true if the entry is fresh or stale by no more than the larger of
+	 * the two. must-revalidate rules out stale answers altogether.
+	 */
+	private static boolean isStaleUsable(CacheEntry entry, long allowed, long requested){
+		CacheControl cc = entry.getCacheControl();
+		long seconds = Math.max(allowed, requested);
+		if (seconds < 0 || cc.mustRevalidate || cc.noCache){
+			return false;
+		}
+		return entry.getStaleness(System.currentTimeMillis()) <= CacheControl.millis(seconds);
+	}
+
+	/**
+	 * Sends the GET again on this controller's Dispatcher to bring the entry
+	 * up to date, conditionally if it has validators. Only one refresh per url
+	 * runs at a time, its response only goes into the cache.
+	 */
+	private void refreshInBackground(final String key, HttpGet request, final BasicCookieStore cookie){
+		synchronized (refreshing) {
+			if (!refreshing.add(key)){
+				return;
+			}
+		}
+		final ArrayList<NameValuePair> headParams = new ArrayList<NameValuePair>();
+		for (Header h: request.getAllHeaders()){
+			if (!h.getName().equalsIgnoreCase("Cache-Control") && !h.getName().equalsIgnoreCase("Pragma")){
+				headParams.add(new BasicNameValuePair(h.getName(), h.getValue()));
+			}
+		}
+		// past the stale entry, to the network
+		headParams.add(new BasicNameValuePair("Cache-Control", "no-cache"));
+		final HttpController refresh = new HttpController(profile);
+		refresh.setResponseCache(getResponseCache());
+		refresh.setCompression(compression);
+		refresh.setMaxResponseBytes(maxResponseBytes);
+		refresh.setBodyType(WebModel.BODY_BYTES);
+		try {
+			getDispatcher().execute(Dispatcher.hostOf(key), WebModel.PRIORITY_LOW, new Dispatcher.Rejectable() {
+				public void run() {
+					try {
+						refresh.get(key, "", 0, cookie, headParams);
+					} finally {
+						refreshDone(key);
+					}
+				}
+
+				public void rejected() {
+					refreshDone(key);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// the stale answer still goes out, a later request can try again
+			Log.w(TAG, "background refresh of " + key + " rejected", e);
+			refreshDone(key);
+		}
+	}
+
+	private static void refreshDone(String key){
+		synchronized (refreshing) {
+			refreshing.remove(key);
+		}
+	}
+
+	/**
+	 * Answers with the stale entry after the network failed, if it is not too
+	 * stale for stale-if-error.
+	 *
+	 * @return true if the response was filled in from the entry
+	 */
+	private boolean staleIfError(SimpleResponse response, BasicCookieStore cookies){
+		if (staleEntry == null || !isStaleUsable(staleEntry, staleEntry.getCacheControl().staleIfError, staleIfError)
+				|| !fromCache(staleEntry, response, cookies)){
+			return false;
+		}
+		if(Constants.VERBOSE){ Log.i(TAG,"network failed, stale hit " + storeKey); }
+		response.setStale(true);
+		return true;
+	}
+
+	/**
+	 * Turns the GET into a conditional one for a stale entry that has an ETag
+	 * or Last-Modified, unless the caller sent conditions of their own. A 304
+	 * answer then refreshes the entry instead of downloading the body again.
+	 */
+	private void addValidators(HttpGet request, CacheEntry entry){
+		if (request.containsHeader("If-None-Match") || request.containsHeader("If-Modified-Since")){
+			return;
+		}
+		String etag = entry.getHeader("ETag");
+		String lastModified = entry.getHeader("Last-Modified");
+		if (etag != null){
+			request.setHeader("If-None-Match", etag);
+		}
+		if (lastModified != null){
+			request.setHeader("If-Modified-Since", lastModified);
+		}
+		if (etag != null || lastModified != null){
+			revalidating = entry;
+		}
+	}
+
+	/**
+	 * The server says the stale entry is still good: store it again with the
+	 * headers of the 304, which restart its freshness, and answer with it.
+	 */
+	private SimpleResponse notModified(HttpResponse httpResponse, SimpleResponse response, BasicCookieStore cookies,
+			long requestTime){
+		CacheEntry entry = revalidating.refresh(httpResponse.getAllHeaders(), requestTime, System.currentTimeMillis());
+		ResponseCache cache = getResponseCache();
+		if (fromCache(entry, response, cookies)){
+			if(Constants.VERBOSE){ Log.i(TAG,"not modified " + storeKey); }
+			response.setSource(SimpleResponse.SOURCE_CONDITIONAL);
+			if (cache != null && !entry.getCacheControl().noStore){
+				cache.put(storeKey, entry);
+			}
+			return response;
+		}
+		if (cache != null){
+			cache.remove(storeKey);
+		}
+		response.setStatus(SimpleResponse.FAIL);
+		response.setMessage("IO Exception");
+		return response;
+	}
+
+	private boolean fromCache(CacheEntry entry, SimpleResponse response, BasicCookieStore cookies){
+		if (bodyType == WebModel.BODY_JSON){
+			try {
+				response.setJson(parseJson(new ByteArrayInputStream(entry.getBody()), entry.getCharset()));
+			} catch (IOException e) {
+				return false;
+			}
+		}
+		else if (bodyType == WebModel.BODY_BYTES){
+			response.setBytes(entry.getBody());
+		}
+		else {
+			response.setBody(entry.getBody(), entry.getCharset());
+		}
+		response.setStatusCode(entry.getStatusCode());
+		response.setHeaders(entry.getHeaders());
+		response.setCookies(cookies);
+		response.setSource(entry.getSource());
+		response.setStatus(SimpleResponse.PASS);
+		return true;
+	}
+
+	/**
+	 * Puts a successful GET response in the cache, if it says it may be
+	 * stored and gives some way of telling whether it is fresh.
+	 */
+	private void store(HttpResponse httpResponse, long requestTime){
+		ResponseCache cache = getResponseCache();
+		if (cache == null || storeBody == null || httpResponse.getStatusLine().getStatusCode() != 200){
+			return;
+		}
+		for (Header vary: httpResponse.getHeaders("Vary")){
+			// bodies are kept decoded, so only Accept-Encoding makes no difference
+			for (String name: vary.getValue().split(",")){
+				if (name.trim().length() > 0 && !name.trim().equalsIgnoreCase("Accept-Encoding")){
+					cache.remove(storeKey);
+					return;
+				}
+			}
+		}
+		ArrayList<Header> kept = new ArrayList<Header>();
+		for (Header h: httpResponse.getAllHeaders()){
+			if (!CacheEntry.isTransferHeader(h.getName())){
+				kept.add(h);
+			}
+		}
+		CacheEntry entry = new CacheEntry(200, kept.toArray(new Header[kept.size()]), storeBody, storeCharset,
+				requestTime, System.currentTimeMillis());
+		if (entry.getCacheControl().noStore || !entry.hasFreshnessInfo()){
+			cache.remove(storeKey);
+			return;
+		}
+		cache.put(storeKey, entry);
+	}
+
+	private BasicCookieStore copyCookies(BasicCookieStore cookie){
+		BasicCookieStore cookieStore = new BasicCookieStore();
+		if (cookie != null){
+			for (Cookie c: cookie.getCookies()){
+				cookieStore.addCookie(c);
+				if (Constants.VERBOSE){Log.d(TAG,"addCookie " + c.getDomain() + "," + c.getName() + "," + c.getValue());}
+			}
+		}
+		else if (Constants.VERBOSE){ Log.d(TAG,"no cookies"); }
+		return cookieStore;
+	}
+
+	/**
+	 * Parses the body while it arrives, the text itself is never kept.
+	 */
+	private Object parseJson(InputStream in, String charset) throws IOException {
+		try {
+			JsonParser parser = new JsonParser(new InputStreamReader(in, charset != null ? charset : "UTF-8"));
+			Object json = parser.readValue();
+			if (parser.next() != JsonParser.END_DOCUMENT){
+				throw new IOException("JSON syntax error: expected end of document");
+			}
+			return json;
+		} finally {
+			in.close();
+		}
+	}
+
+	private SimpleResponse cancelled(SimpleResponse response){
+		response.setStatus(SimpleResponse.CANCELLED);
+		response.setMessage("Cancelled");
+		return response;
+	}
 }
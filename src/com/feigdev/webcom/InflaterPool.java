@@ -0,0 +1,52 @@
+package com.feigdev.webcom;
+
+import java.util.ArrayDeque;
+import java.util.zip.Inflater;
+
+/**
+ * Keeps a few Inflaters for reuse. Each one holds native zlib memory that
+ * is only freed by end() or the finalizer, so creating one per compressed
+ * response is expensive.
+ *
+ * @author emil10001
+ *
+ */
+class InflaterPool {
+	static final int MAX_POOLED = 4;
+
+	// raw deflate (gzip bodies and headerless deflate) and zlib wrapped deflate
+	private static final ArrayDeque<Inflater> raw = new ArrayDeque<Inflater>();
+	private static final ArrayDeque<Inflater> zlib = new ArrayDeque<Inflater>();
+
+	private InflaterPool(){
+	}
+
+	/**
+	 * @param nowrap true for raw deflate data without a zlib header
+	 */
+	static Inflater acquire(boolean nowrap){
+		ArrayDeque<Inflater> pool = nowrap ? raw : zlib;
+		synchronized (pool) {
+			Inflater inflater = pool.poll();
+			if (inflater != null){
+				return inflater;
+			}
+		}
+		return new Inflater(nowrap);
+	}
+
+	/**
+	 * @param nowrap must match the value the inflater was acquired with
+	 */
+	static void release(Inflater inflater, boolean nowrap){
+		ArrayDeque<Inflater> pool = nowrap ? raw : zlib;
+		inflater.reset();
+		synchronized (pool) {
+			if (pool.size() < MAX_POOLED){
+				pool.add(inflater);
+				return;
+			}
+		}
+		inflater.end();
+	}
+}
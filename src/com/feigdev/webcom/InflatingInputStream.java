@@ -0,0 +1,175 @@
+package com.feigdev.webcom;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.io.SequenceInputStream;
+import java.util.zip.CRC32;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+/**
+ * Decodes a gzip or deflate body with an Inflater borrowed from the
+ * InflaterPool, which gets it back on close(). GZIPInputStream can't be
+ * used for this since it always creates its own Inflater.
+ *
+ * @author emil10001
+ *
+ */
+class InflatingInputStream extends InflaterInputStream {
+	private static final int GZIP_MAGIC = 0x8b1f;
+	private static final int FHCRC = 2;
+	private static final int FEXTRA = 4;
+	private static final int FNAME = 8;
+	private static final int FCOMMENT = 16;
+
+	private final boolean nowrap;
+	private final CRC32 crc;
+	private boolean eos;
+	private boolean closed;
+	private boolean released;
+
+	private InflatingInputStream(InputStream in, boolean nowrap, boolean gzip){
+		super(in, InflaterPool.acquire(nowrap), 4096);
+		this.nowrap = nowrap;
+		this.crc = gzip ? new CRC32() : null;
+	}
+
+	/**
+	 * @param in a gzip body, its header is read right away
+	 */
+	static InflatingInputStream gzip(InputStream in) throws IOException {
+		readGzipHeader(in);
+		return new InflatingInputStream(in, true, true);
+	}
+
+	/**
+	 * @param in a deflate body, either zlib wrapped as the spec says or raw
+	 * as some servers send it
+	 */
+	static InflatingInputStream deflate(InputStream in) throws IOException {
+		PushbackInputStream pushback = new PushbackInputStream(in, 2);
+		int b0 = pushback.read();
+		int b1 = b0 == -1 ? -1 : pushback.read();
+		if (b1 != -1){
+			pushback.unread(b1);
+		}
+		if (b0 != -1){
+			pushback.unread(b0);
+		}
+		boolean zlib = b1 != -1 && (b0 & 0x0f) == 8 && ((b0 << 8) | b1) % 31 == 0;
+		return new InflatingInputStream(pushback, !zlib, false);
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (released){
+			throw new IOException("stream closed");
+		}
+		if (eos){
+			return -1;
+		}
+		int read = super.read(b, off, len);
+		if (read == -1){
+			eos = true;
+			if (crc != null){
+				readGzipTrailer();
+			}
+		}
+		else if (crc != null){
+			crc.update(b, off, read);
+		}
+		return read;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (closed){
+			return;
+		}
+		closed = true;
+		try {
+			super.close();
+		} finally {
+			release();
+		}
+	}
+
+	/**
+	 * Hands the Inflater back without closing the body underneath, for a
+	 * body that is abandoned rather than read to the end. Nothing can be
+	 * read afterwards.
+	 */
+	void release(){
+		if (released){
+			return;
+		}
+		released = true;
+		InflaterPool.release(inf, nowrap);
+	}
+
+	private void readGzipTrailer() throws IOException {
+		// the trailer may already sit in our buffer, past the end of the deflate data
+		int remaining = inf.getRemaining();
+		InputStream tail = remaining > 0
+				? new SequenceInputStream(new ByteArrayInputStream(buf, len - remaining, remaining), in)
+				: in;
+		long expectedCrc = readUInt(tail);
+		long expectedSize = readUInt(tail);
+		if (expectedCrc != crc.getValue() || expectedSize != (inf.getTotalOut() & 0xffffffffL)){
+			throw new ZipException("Corrupt GZIP trailer");
+		}
+	}
+
+	private static void readGzipHeader(InputStream in) throws IOException {
+		if (readUShort(in) != GZIP_MAGIC){
+			throw new ZipException("Not in GZIP format");
+		}
+		if (readUByte(in) != 8){
+			throw new ZipException("Unsupported compression method");
+		}
+		int flags = readUByte(in);
+		// modification time, extra flags, operating system
+		skipBytes(in, 6);
+		if ((flags & FEXTRA) == FEXTRA){
+			skipBytes(in, readUShort(in));
+		}
+		if ((flags & FNAME) == FNAME){
+			while (readUByte(in) != 0){
+			}
+		}
+		if ((flags & FCOMMENT) == FCOMMENT){
+			while (readUByte(in) != 0){
+			}
+		}
+		if ((flags & FHCRC) == FHCRC){
+			skipBytes(in, 2);
+		}
+	}
+
+	private static long readUInt(InputStream in) throws IOException {
+		long low = readUShort(in);
+		return ((long) readUShort(in) << 16) | low;
+	}
+
+	private static int readUShort(InputStream in) throws IOException {
+		int low = readUByte(in);
+		return (readUByte(in) << 8) | low;
+	}
+
+	private static int readUByte(InputStream in) throws IOException {
+		int b = in.read();
+		if (b == -1){
+			throw new EOFException();
+		}
+		return b;
+	}
+
+	private static void skipBytes(InputStream in, int n) throws IOException {
+		while (n-- > 0){
+			readUByte(in);
+		}
+	}
+}
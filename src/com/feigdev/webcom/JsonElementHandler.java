@@ -0,0 +1,47 @@
+package com.feigdev.webcom;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+
+/**
+ * A StreamHandler for JSON feeds. When the body is an array, each element
+ * is parsed and handed over as soon as it has arrived, so only one element
+ * is in memory at a time. Any other body is handed over as a single element.
+ *
+ * Elements are built the same way as JsonParser.readValue() builds them.
+ *
+ * @author emil10001
+ *
+ */
+public abstract class JsonElementHandler implements StreamHandler {
+
+	/**
+	 * Called on the network thread for every element, in order.
+	 */
+	public abstract void onElement(SimpleResponse response, Object element) throws IOException;
+
+	/**
+	 * Called once the whole body has been read.
+	 */
+	public void onComplete(SimpleResponse response) throws IOException {
+	}
+
+	public void onStream(SimpleResponse response, InputStream body) throws IOException {
+		JsonParser parser = new JsonParser(new InputStreamReader(body, "UTF-8"));
+		if (parser.peek() == JsonParser.BEGIN_ARRAY){
+			parser.next();
+			while (parser.peek() != JsonParser.END_ARRAY){
+				onElement(response, parser.readValue());
+			}
+			parser.next();
+		}
+		else {
+			onElement(response, parser.readValue());
+		}
+		if (parser.next() != JsonParser.END_DOCUMENT){
+			throw new IOException("JSON syntax error: expected end of document");
+		}
+		onComplete(response);
+	}
+}
@@ -0,0 +1,355 @@
+package com.feigdev.webcom;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+
+/**
+ * A pull parser that reads JSON straight off a Reader, one token at a time,
+ * so a response can be parsed while it arrives and its text never has to
+ * be held in memory. Used for WebModel.BODY_JSON and JsonElementHandler,
+ * and usable from any StreamHandler.
+ *
+ * readValue() turns the next value into plain java objects:
+ * LinkedHashMap for objects, ArrayList for arrays, String, Long or Double
+ * for numbers, Boolean, and null.
+ *
+ * @author emil10001
+ *
+ */
+public class JsonParser {
+	public static final int BEGIN_OBJECT = 1;
+	public static final int END_OBJECT = 2;
+	public static final int BEGIN_ARRAY = 3;
+	public static final int END_ARRAY = 4;
+	public static final int NAME = 5;
+	public static final int STRING = 6;
+	public static final int NUMBER = 7;
+	public static final int BOOLEAN = 8;
+	public static final int NULL = 9;
+	public static final int END_DOCUMENT = 10;
+
+	private static final int NONE = 0;
+
+	// where we are, one entry per open object or array
+	private static final int EMPTY_DOCUMENT = 0;
+	private static final int NONEMPTY_DOCUMENT = 1;
+	private static final int EMPTY_ARRAY = 2;
+	private static final int NONEMPTY_ARRAY = 3;
+	private static final int EMPTY_OBJECT = 4;
+	private static final int DANGLING_NAME = 5;
+	private static final int NONEMPTY_OBJECT = 6;
+
+	private final Reader in;
+	private final char[] buffer = new char[1024];
+	private int pos;
+	private int limit;
+
+	private int[] stack = new int[32];
+	private int depth = 1;
+
+	private int peeked = NONE;
+	private String text;
+	private final StringBuilder builder = new StringBuilder();
+
+	public JsonParser(Reader in){
+		this.in = in;
+		stack[0] = EMPTY_DOCUMENT;
+	}
+
+	/**
+	 * @return the type of the next token without consuming it
+	 */
+	public int peek() throws IOException {
+		if (peeked == NONE){
+			peeked = advance();
+		}
+		return peeked;
+	}
+
+	/**
+	 * Consumes the next token.
+	 *
+	 * @return its type, the name, string or number itself is in getText()
+	 */
+	public int next() throws IOException {
+		int token = peek();
+		peeked = NONE;
+		return token;
+	}
+
+	/**
+	 * @return the text of the last NAME, STRING, NUMBER or BOOLEAN token
+	 */
+	public String getText(){
+		return text;
+	}
+
+	/**
+	 * Reads the next value, with everything nested in it.
+	 *
+	 * @return a LinkedHashMap, ArrayList, String, Long, Double, Boolean or null
+	 */
+	public Object readValue() throws IOException {
+		int token = next();
+		switch (token){
+		case BEGIN_OBJECT:
+			LinkedHashMap<String, Object> object = new LinkedHashMap<String, Object>();
+			while (peek() != END_OBJECT){
+				next();
+				String name = text;
+				object.put(name, readValue());
+			}
+			next();
+			return object;
+		case BEGIN_ARRAY:
+			ArrayList<Object> array = new ArrayList<Object>();
+			while (peek() != END_ARRAY){
+				array.add(readValue());
+			}
+			next();
+			return array;
+		case STRING:
+			return text;
+		case NUMBER:
+			return toNumber(text);
+		case BOOLEAN:
+			return Boolean.valueOf(text);
+		case NULL:
+			return null;
+		default:
+			throw syntaxError("expected a value");
+		}
+	}
+
+	/**
+	 * Skips the next value, with everything nested in it, without building it.
+	 */
+	public void skipValue() throws IOException {
+		int open = 0;
+		do {
+			int token = next();
+			if (token == BEGIN_OBJECT || token == BEGIN_ARRAY){
+				open++;
+			}
+			else if (token == END_OBJECT || token == END_ARRAY){
+				open--;
+			}
+			else if (token == NAME){
+				continue;
+			}
+			else if (token == END_DOCUMENT){
+				throw syntaxError("unexpected end of document");
+			}
+		} while (open > 0);
+	}
+
+	private int advance() throws IOException {
+		int c;
+		switch (stack[depth - 1]){
+		case EMPTY_ARRAY:
+			stack[depth - 1] = NONEMPTY_ARRAY;
+			c = nextNonWhitespace();
+			if (c == ']'){
+				depth--;
+				return END_ARRAY;
+			}
+			if (c != -1){
+				pos--;
+			}
+			break;
+		case NONEMPTY_ARRAY:
+			c = nextNonWhitespace();
+			if (c == ']'){
+				depth--;
+				return END_ARRAY;
+			}
+			if (c != ','){
+				throw syntaxError("expected , or ]");
+			}
+			break;
+		case EMPTY_OBJECT:
+		case NONEMPTY_OBJECT:
+			boolean empty = stack[depth - 1] == EMPTY_OBJECT;
+			stack[depth - 1] = DANGLING_NAME;
+			c = nextNonWhitespace();
+			if (c == '}'){
+				depth--;
+				return END_OBJECT;
+			}
+			if (!empty){
+				if (c != ','){
+					throw syntaxError("expected , or }");
+				}
+				c = nextNonWhitespace();
+			}
+			if (c != '"'){
+				throw syntaxError("expected a name");
+			}
+			text = readString();
+			return NAME;
+		case DANGLING_NAME:
+			stack[depth - 1] = NONEMPTY_OBJECT;
+			if (nextNonWhitespace() != ':'){
+				throw syntaxError("expected :");
+			}
+			break;
+		case EMPTY_DOCUMENT:
+			stack[depth - 1] = NONEMPTY_DOCUMENT;
+			break;
+		default:
+			if (nextNonWhitespace() != -1){
+				throw syntaxError("expected end of document");
+			}
+			return END_DOCUMENT;
+		}
+
+		c = nextNonWhitespace();
+		switch (c){
+		case '{':
+			push(EMPTY_OBJECT);
+			return BEGIN_OBJECT;
+		case '[':
+			push(EMPTY_ARRAY);
+			return BEGIN_ARRAY;
+		case '"':
+			text = readString();
+			return STRING;
+		case 't':
+			readLiteral("rue");
+			text = "true";
+			return BOOLEAN;
+		case 'f':
+			readLiteral("alse");
+			text = "false";
+			return BOOLEAN;
+		case 'n':
+			readLiteral("ull");
+			text = null;
+			return NULL;
+		case -1:
+			throw syntaxError("unexpected end of document");
+		default:
+			if (c == '-' || (c >= '0' && c <= '9')){
+				pos--;
+				text = readNumber();
+				return NUMBER;
+			}
+			throw syntaxError("unexpected character " + (char) c);
+		}
+	}
+
+	private void push(int context){
+		if (depth == stack.length){
+			int[] bigger = new int[depth * 2];
+			System.arraycopy(stack, 0, bigger, 0, depth);
+			stack = bigger;
+		}
+		stack[depth++] = context;
+	}
+
+	private int read() throws IOException {
+		if (pos == limit){
+			limit = in.read(buffer, 0, buffer.length);
+			pos = 0;
+			if (limit <= 0){
+				limit = 0;
+				return -1;
+			}
+		}
+		return buffer[pos++];
+	}
+
+	private int nextNonWhitespace() throws IOException {
+		int c;
+		do {
+			c = read();
+		} while (c == ' ' || c == '\t' || c == '\n' || c == '\r');
+		return c;
+	}
+
+	private String readString() throws IOException {
+		builder.setLength(0);
+		while (true){
+			int c = read();
+			if (c == '"'){
+				return builder.toString();
+			}
+			if (c == -1){
+				throw syntaxError("unterminated string");
+			}
+			if (c == '\\'){
+				c = read();
+				switch (c){
+				case 'n': builder.append('\n'); break;
+				case 't': builder.append('\t'); break;
+				case 'r': builder.append('\r'); break;
+				case 'b': builder.append('\b'); break;
+				case 'f': builder.append('\f'); break;
+				case 'u':
+					int value = 0;
+					for (int i = 0; i < 4; i++){
+						int digit = Character.digit(read(), 16);
+						if (digit < 0){
+							throw syntaxError("bad \\u escape");
+						}
+						value = value * 16 + digit;
+					}
+					builder.append((char) value);
+					break;
+				case -1:
+					throw syntaxError("unterminated string");
+				default:
+					builder.append((char) c);
+				}
+			}
+			else {
+				builder.append((char) c);
+			}
+		}
+	}
+
+	private String readNumber() throws IOException {
+		builder.setLength(0);
+		while (true){
+			int c = read();
+			if ((c >= '0' && c <= '9') || c == '-' || c == '+' || c == '.' || c == 'e' || c == 'E'){
+				builder.append((char) c);
+			}
+			else {
+				if (c != -1){
+					pos--;
+				}
+				return builder.toString();
+			}
+		}
+	}
+
+	private void readLiteral(String rest) throws IOException {
+		for (int i = 0; i < rest.length(); i++){
+			if (read() != rest.charAt(i)){
+				throw syntaxError("bad literal");
+			}
+		}
+	}
+
+	private Object toNumber(String number) throws IOException {
+		try {
+			if (number.indexOf('.') < 0 && number.indexOf('e') < 0 && number.indexOf('E') < 0){
+				try {
+					return Long.valueOf(number);
+				} catch (NumberFormatException e) {
+					// too big for a long, fall through to double
+				}
+			}
+			return Double.valueOf(number);
+		} catch (NumberFormatException e) {
+			throw syntaxError("bad number " + number);
+		}
+	}
+
+	private IOException syntaxError(String message){
+		return new IOException("JSON syntax error: " + message);
+	}
+}
@@ -0,0 +1,107 @@
+package com.feigdev.webcom;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+
+/**
+ * Lets at most limit bytes of the wrapped entity be read. Reading past the
+ * limit throws a ResponseTooLargeException, so an oversized body is never
+ * pulled into memory.
+ *
+ * @author emil10001
+ *
+ */
+class LimitedEntity extends HttpEntityWrapper {
+	private final long limit;
+
+	LimitedEntity(HttpEntity wrapped, long limit){
+		super(wrapped);
+		this.limit = limit;
+	}
+
+	@Override
+	public InputStream getContent() throws IOException {
+		return new LimitedInputStream(wrappedEntity.getContent(), limit);
+	}
+
+	@Override
+	public void writeTo(OutputStream out) throws IOException {
+		InputStream in = getContent();
+		byte[] buffer = BufferPool.get().acquire(BodyReader.CHUNK_SIZE);
+		try {
+			int read;
+			while ((read = in.read(buffer)) != -1){
+				out.write(buffer, 0, read);
+			}
+		} finally {
+			BufferPool.get().release(buffer);
+			in.close();
+		}
+	}
+
+	static class LimitedInputStream extends FilterInputStream {
+		private final long limit;
+		private long count;
+		private boolean exceeded;
+
+		LimitedInputStream(InputStream in, long limit){
+			super(in);
+			this.limit = limit;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b != -1){
+				count(1);
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int read = super.read(b, off, len);
+			if (read > 0){
+				count(read);
+			}
+			return read;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = super.skip(n);
+			count(skipped);
+			return skipped;
+		}
+
+		/**
+		 * Closing the stream of a managed entity reads whatever is left, which
+		 * is the one thing not to do with an oversized body. The caller aborts
+		 * the request instead, and releases a DecodingEntity's decoder.
+		 */
+		@Override
+		public void close() throws IOException {
+			if (!exceeded){
+				super.close();
+			}
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+
+		private void count(long read) throws ResponseTooLargeException {
+			count += read;
+			if (count > limit){
+				exceeded = true;
+				throw new ResponseTooLargeException(limit);
+			}
+		}
+	}
+}
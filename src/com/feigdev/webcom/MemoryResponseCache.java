@@ -0,0 +1,117 @@
+package com.feigdev.webcom;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.util.Log;
+
+/**
+ * Keeps responses in memory, up to maxSize bytes as counted by
+ * CacheEntry.getSize(). When full, the least recently used entries are
+ * evicted first.
+ *
+ * A hit is a get() that found an entry, whether or not it was still
+ * fresh, a miss is one that did not.
+ *
+ * @author emil10001
+ *
+ */
+public class MemoryResponseCache implements ResponseCache {
+	public static final String TAG = "MemoryResponseCache";
+
+	private final long maxSize;
+	private final LinkedHashMap<String, CacheEntry> entries = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true);
+	private long size;
+	private long hits;
+	private long misses;
+	private long evictions;
+
+	/**
+	 * @param maxSize bytes the entries may take together
+	 */
+	public MemoryResponseCache(long maxSize){
+		if (maxSize <= 0){
+			throw new IllegalArgumentException("maxSize <= 0");
+		}
+		this.maxSize = maxSize;
+	}
+
+	public synchronized CacheEntry get(String url){
+		CacheEntry entry = entries.get(url);
+		if (entry == null){
+			misses++;
+		}
+		else {
+			hits++;
+		}
+		return entry;
+	}
+
+	/**
+	 * Stores the entry, unless it alone is bigger than the whole cache.
+	 */
+	public synchronized void put(String url, CacheEntry entry){
+		long entrySize = entry.getSize();
+		if (entrySize > maxSize){
+			remove(url);
+			return;
+		}
+		CacheEntry old = entries.put(url, entry);
+		if (old != null){
+			size -= old.getSize();
+		}
+		size += entrySize;
+		trimToSize();
+	}
+
+	public synchronized void remove(String url){
+		CacheEntry old = entries.remove(url);
+		if (old != null){
+			size -= old.getSize();
+		}
+	}
+
+	public synchronized void clear(){
+		entries.clear();
+		size = 0;
+	}
+
+	private void trimToSize(){
+		Iterator<Map.Entry<String, CacheEntry>> eldest = entries.entrySet().iterator();
+		while (size > maxSize && eldest.hasNext()){
+			Map.Entry<String, CacheEntry> e = eldest.next();
+			size -= e.getValue().getSize();
+			eldest.remove();
+			evictions++;
+			if(Constants.VERBOSE){ Log.i(TAG,"evicted " + e.getKey()); }
+		}
+	}
+
+	public long getMaxSize(){
+		return maxSize;
+	}
+
+	/**
+	 * @return bytes the entries take now
+	 */
+	public synchronized long getSize(){
+		return size;
+	}
+
+	public synchronized int getEntryCount(){
+		return entries.size();
+	}
+
+	public synchronized long getHitCount(){
+		return hits;
+	}
+
+	public synchronized long getMissCount(){
+		return misses;
+	}
+
+	public synchronized long getEvictionCount(){
+		return evictions;
+	}
+}
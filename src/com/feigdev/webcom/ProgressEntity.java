@@ -0,0 +1,124 @@
+package com.feigdev.webcom;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+
+/**
+ * Counts the bytes of a request body as it is written, or of a response
+ * body as it is read, and tells a ProgressListener about them no more
+ * often than every interval milliseconds.
+ *
+ * @author emil10001
+ *
+ */
+class ProgressEntity extends HttpEntityWrapper {
+	private final ProgressListener listener;
+	private final int id;
+	private final int direction;
+	private final long interval;
+	private long lastReport;
+	private long lastBytes = -1;
+
+	ProgressEntity(HttpEntity wrapped, ProgressListener listener, int id, int direction, long interval){
+		super(wrapped);
+		this.listener = listener;
+		this.id = id;
+		this.direction = direction;
+		this.interval = interval;
+	}
+
+	@Override
+	public InputStream getContent() throws IOException {
+		InputStream in = wrappedEntity.getContent();
+		return in == null ? null : new ProgressInputStream(in);
+	}
+
+	@Override
+	public void writeTo(OutputStream out) throws IOException {
+		if (direction == ProgressListener.DOWNLOAD){
+			InputStream in = getContent();
+			byte[] buffer = BufferPool.get().acquire(BodyReader.CHUNK_SIZE);
+			try {
+				int read;
+				while ((read = in.read(buffer)) != -1){
+					out.write(buffer, 0, read);
+				}
+			} finally {
+				BufferPool.get().release(buffer);
+				in.close();
+			}
+			return;
+		}
+		ProgressOutputStream counting = new ProgressOutputStream(out);
+		lastBytes = -1;
+		report(0, true);
+		wrappedEntity.writeTo(counting);
+		counting.flush();
+		report(counting.count, true);
+	}
+
+	private void report(long bytes, boolean force){
+		long now = System.nanoTime() / 1000000;
+		if (bytes == lastBytes || (!force && now - lastReport < interval)){
+			return;
+		}
+		lastReport = now;
+		lastBytes = bytes;
+		listener.onProgress(id, direction, bytes, getContentLength());
+	}
+
+	private class ProgressInputStream extends CountingInputStream {
+		ProgressInputStream(InputStream in){
+			super(in);
+			report(0, true);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			report(getCount(), b == -1);
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int read = super.read(b, off, len);
+			report(getCount(), read == -1);
+			return read;
+		}
+
+		@Override
+		public void close() throws IOException {
+			// a decoder may stop short of reading the end of the stream
+			report(getCount(), true);
+			super.close();
+		}
+	}
+
+	private class ProgressOutputStream extends FilterOutputStream {
+		long count;
+
+		ProgressOutputStream(OutputStream out){
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+			report(count, false);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+			report(count, false);
+		}
+	}
+}
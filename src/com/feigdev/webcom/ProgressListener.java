@@ -0,0 +1,24 @@
+package com.feigdev.webcom;
+
+/**
+ * Hears how far an upload or download has got. Set it with
+ * WebModel.setProgressListener().
+ *
+ * onProgress() runs on the network thread, at most once per progress
+ * interval, plus once more when the body is complete.
+ *
+ * @author emil10001
+ *
+ */
+public interface ProgressListener {
+	public static final int UPLOAD = 0;
+	public static final int DOWNLOAD = 1;
+
+	/**
+	 * @param id the id of the interaction
+	 * @param direction ProgressListener.UPLOAD or ProgressListener.DOWNLOAD
+	 * @param bytes bytes sent or received so far
+	 * @param total size of the body, -1 if unknown
+	 */
+	public void onProgress(int id, int direction, long bytes, long total);
+}
@@ -0,0 +1,129 @@
+package com.feigdev.webcom;
+
+/**
+ * Returned by WebModel.interact(). Lets the caller cancel an interaction
+ * it no longer needs, whether it is still queued in the Dispatcher or
+ * already talking to the server.
+ *
+ * A cancelled interaction never calls its WebComListener. If the
+ * interaction shares its GET with others (see SharedGet), cancelling it
+ * only lets the others carry on without it.
+ *
+ * @author emil10001
+ *
+ */
+public class RequestHandle {
+	private final Object tag;
+	private final HttpController controller;
+	final String host;
+	private Dispatcher dispatcher;
+	private SharedGet group;
+	private boolean started;
+	private boolean cancelled;
+	private boolean done;
+	private Runnable onCancel;
+
+	RequestHandle(String host, Object tag, HttpController controller){
+		this.host = host;
+		this.tag = tag;
+		this.controller = controller;
+	}
+
+	/**
+	 * Takes a queued interaction out of its Dispatcher's queue, or aborts
+	 * the http request if it is already running.
+	 *
+	 * @return false if the interaction had already finished or been cancelled
+	 */
+	public boolean cancel(){
+		Dispatcher d;
+		SharedGet g;
+		boolean running;
+		Runnable hook;
+		synchronized (this) {
+			if (done || cancelled){
+				return false;
+			}
+			cancelled = true;
+			d = dispatcher;
+			g = group;
+			running = started;
+			hook = onCancel;
+			onCancel = null;
+		}
+		if (g != null){
+			g.leave(this);
+		}
+		else {
+			if (!running && d != null){
+				d.remove(this);
+			}
+			if (controller != null){
+				controller.abort();
+			}
+		}
+		if (hook != null){
+			hook.run();
+		}
+		return true;
+	}
+
+	public synchronized boolean isCancelled(){
+		return cancelled;
+	}
+
+	/**
+	 * @return true once the interaction has finished or was cancelled
+	 */
+	public synchronized boolean isDone(){
+		return done || cancelled;
+	}
+
+	public Object getTag(){
+		return tag;
+	}
+
+	HttpController getController(){
+		return controller;
+	}
+
+	/**
+	 * @param onCancel runs once if the interaction is cancelled, right away if
+	 * it already was. Lets a WebFuture or Batch waiting on the listener,
+	 * which is never called then, finish anyway.
+	 */
+	void setOnCancel(Runnable onCancel){
+		synchronized (this) {
+			if (!cancelled){
+				if (!done){
+					this.onCancel = onCancel;
+				}
+				return;
+			}
+		}
+		onCancel.run();
+	}
+
+	synchronized void setDispatcher(Dispatcher dispatcher){
+		this.dispatcher = dispatcher;
+	}
+
+	synchronized void setGroup(SharedGet group){
+		this.group = group;
+	}
+
+	/**
+	 * Called by the worker thread right before running the interaction.
+	 *
+	 * @return false if it was cancelled and should not run
+	 */
+	synchronized boolean start(){
+		started = true;
+		return !cancelled;
+	}
+
+	synchronized void finish(){
+		done = true;
+		onCancel = null;
+	}
+}
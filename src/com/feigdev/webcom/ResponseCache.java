@@ -0,0 +1,26 @@
+package com.feigdev.webcom;
+
+/**
+ * Stores responses for HttpController to answer GETs from. Keys are
+ * request urls. Set one with HttpController.setDefaultResponseCache() or
+ * WebModel.setResponseCache().
+ *
+ * HttpController decides what may be stored and whether a stored entry is
+ * still fresh, a ResponseCache only keeps entries. Implementations are
+ * called from several network threads at once.
+ *
+ * @author emil10001
+ *
+ */
+public interface ResponseCache {
+	/**
+	 * @return the entry stored for the url, fresh or not, or null
+	 */
+	public CacheEntry get(String url);
+
+	public void put(String url, CacheEntry entry);
+
+	public void remove(String url);
+
+	public void clear();
+}
@@ -0,0 +1,172 @@
+package com.feigdev.webcom;
+
+import java.util.ArrayList;
+import java.util.concurrent.Executor;
+
+import android.util.Log;
+
+/**
+ * Decides which thread WebComListener.onResponse() runs on.
+ *
+ * By default the listener is called directly on the network thread. Give
+ * a ResponseDelivery an Executor, for example one that posts to a Handler
+ * on the UI thread, and every response is handed to that executor instead.
+ *
+ * A coalescing delivery puts responses that finish close together into a
+ * single task on the executor, so a burst of responses costs one wakeup
+ * of the receiving thread instead of one per response.
+ *
+ * @author emil10001
+ *
+ */
+public class ResponseDelivery {
+	public static final String TAG = "ResponseDelivery";
+	private static ResponseDelivery defaultDelivery;
+
+	private final Executor executor;
+	private final boolean coalesce;
+	private final long window;
+	private ArrayList<Pending> pending = new ArrayList<Pending>();
+	private boolean flushScheduled;
+
+	private final Runnable flush = new Runnable() {
+		public void run() {
+			flush();
+		}
+	};
+
+	private final Runnable scheduleFlush = new Runnable() {
+		public void run() {
+			post(flush);
+		}
+	};
+
+	/**
+	 * Calls every listener on the given executor, one task per response.
+	 *
+	 * @param executor where listeners run, null to run them on the network thread
+	 */
+	public ResponseDelivery(Executor executor){
+		this(executor, false, 0);
+	}
+
+	private ResponseDelivery(Executor executor, boolean coalesce, long window){
+		this.executor = executor;
+		this.coalesce = coalesce;
+		this.window = window;
+	}
+
+	/**
+	 * Collects responses and calls their listeners together in one task on the
+	 * executor. The task is posted windowMillis after the first response of a
+	 * burst arrives, responses arriving before the task runs join it.
+	 *
+	 * @param executor where listeners run
+	 * @param windowMillis how long to wait for more responses, 0 to post right away
+	 * @return a coalescing ResponseDelivery
+	 */
+	public static ResponseDelivery coalescing(Executor executor, long windowMillis){
+		if (executor == null){
+			throw new IllegalArgumentException("executor == null");
+		}
+		return new ResponseDelivery(executor, true, windowMillis);
+	}
+
+	/**
+	 * @return the delivery used by every WebModel that was not given its own,
+	 * calls listeners on the network thread unless replaced
+	 */
+	public static synchronized ResponseDelivery getDefault(){
+		if (defaultDelivery == null){
+			defaultDelivery = new ResponseDelivery(null);
+		}
+		return defaultDelivery;
+	}
+
+	public static synchronized void setDefault(ResponseDelivery delivery){
+		defaultDelivery = delivery;
+	}
+
+	/**
+	 * Hands the response to the listener on this delivery's executor. The
+	 * listener is skipped if the interaction is cancelled before it runs.
+	 */
+	public void deliver(RequestHandle handle, WebComListener listener, SimpleResponse response){
+		if (executor == null){
+			listener.onResponse(response);
+			return;
+		}
+		final Pending p = new Pending(handle, listener, response);
+		if (!coalesce){
+			post(new Runnable() {
+				public void run() {
+					p.run();
+				}
+			});
+			return;
+		}
+		synchronized (this) {
+			pending.add(p);
+			if (flushScheduled){
+				return;
+			}
+			flushScheduled = true;
+		}
+		if (window > 0){
+			try {
+				Dispatcher.schedule(scheduleFlush, window);
+			} catch (RuntimeException e) {
+				Log.w(TAG, "could not schedule delivery", e);
+				post(flush);
+			}
+		}
+		else {
+			post(flush);
+		}
+	}
+
+	/**
+	 * Runs the task on the executor, or right here if the executor refuses
+	 * it, for example after it was shut down. A flush that never runs would
+	 * hold back every later response as well.
+	 */
+	private void post(Runnable task){
+		try {
+			executor.execute(task);
+		} catch (RuntimeException e) {
+			Log.w(TAG, "executor rejected delivery, delivering on " + Thread.currentThread().getName(), e);
+			task.run();
+		}
+	}
+
+	private void flush(){
+		ArrayList<Pending> batch;
+		synchronized (this) {
+			batch = pending;
+			pending = new ArrayList<Pending>();
+			flushScheduled = false;
+		}
+		if(Constants.VERBOSE){ Log.i(TAG,"delivering " + batch.size() + " responses"); }
+		for (Pending p: batch){
+			p.run();
+		}
+	}
+
+	private static class Pending {
+		final RequestHandle handle;
+		final WebComListener listener;
+		final SimpleResponse response;
+
+		Pending(RequestHandle handle, WebComListener listener, SimpleResponse response){
+			this.handle = handle;
+			this.listener = listener;
+			this.response = response;
+		}
+
+		void run(){
+			if (handle == null || !handle.isCancelled()){
+				listener.onResponse(response);
+			}
+		}
+	}
+}
@@ -0,0 +1,18 @@
+package com.feigdev.webcom;
+
+import java.io.IOException;
+
+/**
+ * Thrown while reading a response body that is bigger than the limit set
+ * with WebModel.setMaxResponseBytes() or HttpController.setDefaultMaxResponseBytes().
+ *
+ * @author emil10001
+ *
+ */
+public class ResponseTooLargeException extends IOException {
+	private static final long serialVersionUID = 1L;
+
+	public ResponseTooLargeException(long limit){
+		super("response body is larger than " + limit + " bytes");
+	}
+}
@@ -0,0 +1,127 @@
+package com.feigdev.webcom;
+
+import java.util.ArrayList;
+
+import android.util.Log;
+
+/**
+ * One network GET shared by every identical GET that is queued while it is
+ * still in flight. Each WebModel that joins keeps its own RequestHandle and
+ * listener, the response is fetched once and handed to all of them.
+ *
+ * Cancelling one participant only removes it. The network request itself
+ * is cancelled once nobody is left waiting for it.
+ *
+ * All state is guarded by the owning Dispatcher.
+ *
+ * @author emil10001
+ *
+ */
+class SharedGet implements Dispatcher.Rejectable {
+	final String key;
+	final RequestHandle network;
+	private final Dispatcher dispatcher;
+	private final Fetch fetch;
+	private final ArrayList<RequestHandle> handles = new ArrayList<RequestHandle>();
+	private final ArrayList<WebComListener> sinks = new ArrayList<WebComListener>();
+	private boolean closed;
+
+	interface Fetch {
+		SimpleResponse fetch();
+
+		/**
+		 * @return the failure to hand out when the request could not be
+		 * started or fetch() threw
+		 */
+		SimpleResponse failed(String message);
+	}
+
+	SharedGet(Dispatcher dispatcher, String key, RequestHandle network, Fetch fetch){
+		this.dispatcher = dispatcher;
+		this.key = key;
+		this.network = network;
+		this.fetch = fetch;
+	}
+
+	/**
+	 * Caller holds the dispatcher lock.
+	 *
+	 * @return false if the response is already being delivered and it is too
+	 * late to join
+	 */
+	boolean join(RequestHandle handle, WebComListener sink){
+		if (closed){
+			return false;
+		}
+		handles.add(handle);
+		sinks.add(sink);
+		handle.setGroup(this);
+		return true;
+	}
+
+	void leave(RequestHandle handle){
+		boolean last;
+		synchronized (dispatcher) {
+			int i = handles.indexOf(handle);
+			if (i < 0){
+				return;
+			}
+			handles.remove(i);
+			sinks.remove(i);
+			last = handles.isEmpty() && !closed;
+			if (last){
+				closed = true;
+				dispatcher.forget(this);
+			}
+		}
+		handle.finish();
+		if (last){
+			network.cancel();
+		}
+	}
+
+	/**
+	 * Caller holds the dispatcher lock.
+	 */
+	ArrayList<RequestHandle> participants(){
+		return handles;
+	}
+
+	public void run() {
+		SimpleResponse response = null;
+		try {
+			response = fetch.fetch();
+		} catch (RuntimeException e) {
+			// every participant still gets an answer
+			Log.w(Dispatcher.TAG, "shared GET " + key + " failed", e);
+			response = fetch.failed("Runtime Exception");
+		} finally {
+			deliver(response);
+		}
+	}
+
+	public void rejected() {
+		deliver(fetch.failed("Rejected"));
+	}
+
+	/**
+	 * Hands the response to every participant still waiting, a null
+	 * response only releases them.
+	 */
+	private void deliver(SimpleResponse response){
+		ArrayList<RequestHandle> h;
+		ArrayList<WebComListener> s;
+		synchronized (dispatcher) {
+			closed = true;
+			dispatcher.forget(this);
+			h = new ArrayList<RequestHandle>(handles);
+			s = new ArrayList<WebComListener>(sinks);
+		}
+		for (int i = 0; i < h.size(); i++){
+			if (response != null && !h.get(i).isCancelled()){
+				s.get(i).onResponse(response);
+			}
+			h.get(i).finish();
+		}
+	}
+}
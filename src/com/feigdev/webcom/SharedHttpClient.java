@@ -0,0 +1,142 @@
+package com.feigdev.webcom;
+
+import java.util.HashMap;
+
+import org.apache.http.HttpVersion;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.client.AbstractHttpClient;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+
+import android.util.Log;
+
+/**
+ * Holds the process wide http clients. Each named profile gets exactly one
+ * DefaultHttpClient backed by a ThreadSafeClientConnManager, so connections
+ * are kept alive and reused by every HttpController using that profile.
+ *
+ * The clients do not carry any cookies themselves, HttpController passes
+ * the cookies for each request in its own HttpContext.
+ *
+ * @author emil10001
+ *
+ */
+public class SharedHttpClient {
+	public static final String TAG = "SharedHttpClient";
+	public static final String DEFAULT_PROFILE = "default";
+	public static final int DEFAULT_MAX_TOTAL = 20;
+	public static final int DEFAULT_MAX_PER_ROUTE = 6;
+
+	private static final HashMap<String, Profile> profiles = new HashMap<String, Profile>();
+
+	private SharedHttpClient(){
+	}
+
+	/**
+	 * @return the client for the default profile
+	 */
+	public static AbstractHttpClient get(){
+		return get(DEFAULT_PROFILE);
+	}
+
+	/**
+	 * Returns the client for a profile, creating it on first use. Profiles that
+	 * were never configured use the default limits.
+	 *
+	 * @param profile name of the profile, null for the default one
+	 * @return a thread safe client shared by everyone using this profile
+	 */
+	public static synchronized AbstractHttpClient get(String profile){
+		Profile p = profile(profile);
+		if (p.client == null){
+			if(Constants.VERBOSE){ Log.i(TAG,"creating client for " + p.name); }
+			p.client = createClient(p);
+		}
+		return p.client;
+	}
+
+	/**
+	 * Sets the connection limits for a profile. This has to happen before the
+	 * profile's client is first used.
+	 *
+	 * @param profile name of the profile, null for the default one
+	 * @param maxTotal maximum number of open connections
+	 * @param maxPerRoute maximum number of open connections to a single host
+	 * @param timeout connect, read and pool wait timeout in milliseconds
+	 */
+	public static synchronized void configure(String profile, int maxTotal, int maxPerRoute, int timeout){
+		if (maxTotal < 1 || maxPerRoute < 1){
+			throw new IllegalArgumentException("connection limits must be positive");
+		}
+		Profile p = profile(profile);
+		if (p.client != null){
+			throw new IllegalStateException("profile " + p.name + " is already in use");
+		}
+		p.maxTotal = maxTotal;
+		p.maxPerRoute = maxPerRoute;
+		p.timeout = timeout;
+	}
+
+	/**
+	 * Closes every pooled connection of a profile. The next get() creates a
+	 * new client with the limits the profile was configured with.
+	 *
+	 * @param profile name of the profile, null for the default one
+	 */
+	public static synchronized void shutdown(String profile){
+		Profile p = profiles.get(profile == null ? DEFAULT_PROFILE : profile);
+		if (p != null && p.client != null){
+			p.client.getConnectionManager().shutdown();
+			p.client = null;
+		}
+	}
+
+	private static Profile profile(String name){
+		if (name == null){
+			name = DEFAULT_PROFILE;
+		}
+		Profile p = profiles.get(name);
+		if (p == null){
+			p = new Profile(name);
+			profiles.put(name, p);
+		}
+		return p;
+	}
+
+	private static AbstractHttpClient createClient(Profile p){
+		final HttpParams params = new BasicHttpParams();
+		ConnManagerParams.setMaxTotalConnections(params, p.maxTotal);
+		ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(p.maxPerRoute));
+		ConnManagerParams.setTimeout(params, p.timeout);
+		HttpConnectionParams.setConnectionTimeout(params, p.timeout);
+		HttpConnectionParams.setSoTimeout(params, p.timeout);
+		HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+
+		SchemeRegistry registry = new SchemeRegistry();
+		registry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+		registry.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
+
+		return new DefaultHttpClient(new ThreadSafeClientConnManager(params, registry), params);
+	}
+
+	private static class Profile {
+		final String name;
+		int maxTotal = DEFAULT_MAX_TOTAL;
+		int maxPerRoute = DEFAULT_MAX_PER_ROUTE;
+		int timeout = HttpController.TIMEOUT;
+		AbstractHttpClient client;
+
+		Profile(String name){
+			this.name = name;
+		}
+	}
+}
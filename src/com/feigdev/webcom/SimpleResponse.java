@@ -1,6 +1,19 @@
 package com.feigdev.webcom;
 
+import java.io.File;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.http.Header;
+import org.apache.http.cookie.Cookie;
 import org.apache.http.impl.client.BasicCookieStore;
+import org.apache.http.protocol.HTTP;
 
 /**
  * This is the object that will be used to send the calling class information
@@ -12,6 +25,20 @@ import org.apache.http.impl.client.BasicCookieStore;
 public class SimpleResponse {
 	private int status;
 	private String message;
+	private byte[] bytes;
+	private String charset;
+	private boolean decoded = true;
+	private Object json;
+	private File file;
+	private long bytesReceived;
+	private long resumeOffset;
+	private long compressedBytes;
+	private int statusCode;
+	private boolean stale;
+	private int source = SOURCE_NONE;
+	private Header[] headers;
+	private Map<String, List<String>> headerMap;
+	private long decompressedBytes;
 	private String contentType;
 	private String url;
 	private int id;
@@ -19,6 +46,13 @@ public class SimpleResponse {
 	public static final int FAIL = 1;
 	public static final int PASS = 0;
 	public static final int NOTEXECUTED = -1;
+	public static final int CANCELLED = 2;
+	public static final int TOO_LARGE = 3;
+	public static final int SOURCE_NONE = -1;
+	public static final int SOURCE_NETWORK = 0;
+	public static final int SOURCE_CONDITIONAL = 1;
+	public static final int SOURCE_MEMORY = 2;
+	public static final int SOURCE_DISK = 3;
 	
 	public SimpleResponse(){
 		status = NOTEXECUTED;
@@ -28,7 +62,8 @@ public class SimpleResponse {
 	}
 	
 	/**
-	 * @return either SimpleResponse.FAIL, SimpleResponse.PASS or SimpleResponse.NOTEXECUTED
+	 * @return either SimpleResponse.FAIL, SimpleResponse.PASS, SimpleResponse.CANCELLED,
+	 * SimpleResponse.TOO_LARGE or SimpleResponse.NOTEXECUTED
 	 */
 	public int getStatus() {
 		return status;
@@ -36,17 +71,223 @@ public class SimpleResponse {
 	public void setStatus(int status) {
 		this.status = status;
 	}
+	/**
+	 * @return the HTTP status code, 0 if no response was received
+	 */
+	public int getStatusCode() {
+		return statusCode;
+	}
+	
+	public void setStatusCode(int statusCode) {
+		this.statusCode = statusCode;
+	}
+	
+	/**
+	 * @return where the response came from: SimpleResponse.SOURCE_NETWORK for a
+	 * full response from the server, SimpleResponse.SOURCE_CONDITIONAL for a
+	 * cached body the server said is still current, SimpleResponse.SOURCE_MEMORY
+	 * or SimpleResponse.SOURCE_DISK for one answered from the cache alone, or
+	 * SimpleResponse.SOURCE_NONE if there was no response
+	 */
+	public int getSource() {
+		return source;
+	}
+	
+	public void setSource(int source) {
+		this.source = source;
+	}
+	
+	/**
+	 * @return true if the response is a cached copy past its freshness,
+	 * answered with because stale-while-revalidate or stale-if-error allowed it
+	 */
+	public boolean isStale() {
+		return stale;
+	}
+	
+	public void setStale(boolean stale) {
+		this.stale = stale;
+	}
+	
+	/**
+	 * @return the first value of the named header, ignoring case, or null
+	 */
+	public String getHeader(String name) {
+		if (headers != null){
+			for (Header h: headers){
+				if (h.getName().equalsIgnoreCase(name)){
+					return h.getValue();
+				}
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * @return every response header by name, ignoring case, in the order
+	 * received. Built the first time it is asked for.
+	 */
+	public synchronized Map<String, List<String>> getHeaders() {
+		if (headerMap == null){
+			TreeMap<String, List<String>> map = new TreeMap<String, List<String>>(String.CASE_INSENSITIVE_ORDER);
+			if (headers != null){
+				for (Header h: headers){
+					List<String> values = map.get(h.getName());
+					if (values == null){
+						values = new ArrayList<String>(1);
+						map.put(h.getName(), values);
+					}
+					values.add(h.getValue());
+				}
+			}
+			for (Map.Entry<String, List<String>> e: map.entrySet()){
+				e.setValue(Collections.unmodifiableList(e.getValue()));
+			}
+			headerMap = Collections.unmodifiableMap(map);
+		}
+		return headerMap;
+	}
+	
+	/**
+	 * @param headers the headers as received, kept as is until asked for
+	 */
+	public synchronized void setHeaders(Header[] headers) {
+		this.headers = headers;
+		this.headerMap = null;
+	}
+	
 	/**
 	 * 
 	 * @return the content of the results. If doing a GET on a webpage, this will contain all 
 	 * of the html of that page 
 	 */
-	public String getMessage() {
+	public synchronized String getMessage() {
+		if (!decoded){
+			// first call for a text body, decode it once and keep the result
+			try {
+				message = new String(bytes, charset);
+			} catch (UnsupportedEncodingException e) {
+				message = new String(bytes, 0, bytes.length, Charset.forName(HTTP.DEFAULT_CONTENT_CHARSET));
+			}
+			decoded = true;
+		}
 		return message;
 	}
-	public void setMessage(String message) {
+	public synchronized void setMessage(String message) {
 		this.message = message;
+		this.decoded = true;
 	}
+	
+	/**
+	 * Keeps a text body as it arrived, getMessage() decodes it when first called.
+	 * 
+	 * @param charset from the Content-Type, null for the HTTP default ISO-8859-1
+	 */
+	public synchronized void setBody(byte[] bytes, String charset) {
+		this.bytes = bytes;
+		this.charset = charset != null ? charset : HTTP.DEFAULT_CONTENT_CHARSET;
+		this.message = null;
+		this.decoded = false;
+	}
+	
+	/**
+	 * @return the charset getMessage() decodes the body with, null if the body
+	 * was not kept as bytes
+	 */
+	public String getCharset() {
+		return charset;
+	}
+	
+	/**
+	 * @return the raw body for WebModel.BODY_BYTES and WebModel.BODY_STRING
+	 * interactions, null otherwise. The array may be shared with other
+	 * responses, do not modify it.
+	 */
+	public byte[] getBytes() {
+		return bytes;
+	}
+	
+	/**
+	 * @return a read only view of getBytes(), or null
+	 */
+	public ByteBuffer getByteBuffer() {
+		return bytes == null ? null : ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+	}
+	
+	public void setBytes(byte[] bytes) {
+		this.bytes = bytes;
+	}
+	
+	/**
+	 * @return the parsed body for WebModel.BODY_JSON interactions, null otherwise.
+	 * See JsonParser.readValue() for the types used. It may be shared with
+	 * other responses, do not modify it.
+	 */
+	public Object getJson() {
+		return json;
+	}
+	
+	public void setJson(Object json) {
+		this.json = json;
+	}
+	
+	/**
+	 * @return the downloaded file for WebModel.BODY_FILE interactions, null otherwise
+	 */
+	public File getFile() {
+		return file;
+	}
+	
+	public void setFile(File file) {
+		this.file = file;
+	}
+	
+	/**
+	 * @return number of body bytes received over the network for this response
+	 */
+	public long getBytesReceived() {
+		return bytesReceived;
+	}
+	
+	public void setBytesReceived(long bytesReceived) {
+		this.bytesReceived = bytesReceived;
+	}
+	
+	/**
+	 * @return where a resumed download picked up, 0 if the file was downloaded whole
+	 */
+	public long getResumeOffset() {
+		return resumeOffset;
+	}
+	
+	public void setResumeOffset(long resumeOffset) {
+		this.resumeOffset = resumeOffset;
+	}
+	
+	/**
+	 * @return body bytes as they came over the network, before any gzip or
+	 * deflate decoding
+	 */
+	public long getCompressedBytes() {
+		return compressedBytes;
+	}
+	
+	public void setCompressedBytes(long compressedBytes) {
+		this.compressedBytes = compressedBytes;
+	}
+	
+	/**
+	 * @return body bytes after decoding, the same as getCompressedBytes()
+	 * if the body was not compressed
+	 */
+	public long getDecompressedBytes() {
+		return decompressedBytes;
+	}
+	
+	public void setDecompressedBytes(long decompressedBytes) {
+		this.decompressedBytes = decompressedBytes;
+	}
+	
 	public String getContentType() {
 		return contentType;
 	}
@@ -76,4 +317,36 @@ public class SimpleResponse {
 		return cookies;
 	}
 	
+	/**
+	 * Copies a response shared by several identical requests, so each
+	 * requester gets its own id and its own cookie store.
+	 */
+	SimpleResponse copyFor(int id, String contentType){
+		SimpleResponse copy = new SimpleResponse();
+		copy.status = status;
+		synchronized (this) {
+			copy.message = message;
+			copy.bytes = bytes;
+			copy.charset = charset;
+			copy.decoded = decoded;
+		}
+		copy.json = json;
+		copy.statusCode = statusCode;
+		copy.stale = stale;
+		copy.source = source;
+		copy.headers = headers;
+		copy.compressedBytes = compressedBytes;
+		copy.decompressedBytes = decompressedBytes;
+		copy.contentType = contentType;
+		copy.url = url;
+		copy.id = id;
+		if (cookies != null){
+			copy.cookies = new BasicCookieStore();
+			for (Cookie c: cookies.getCookies()){
+				copy.cookies.addCookie(c);
+			}
+		}
+		return copy;
+	}
+	
 }
@@ -0,0 +1,23 @@
+package com.feigdev.webcom;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Receives the body of a response as it arrives, so large responses never
+ * have to fit in memory. Set it with WebModel.setStreamHandler().
+ *
+ * onStream() runs on the network thread while the connection is open.
+ * Whatever it does not read is skipped when it returns. Throwing an
+ * IOException fails the response.
+ *
+ * @author emil10001
+ *
+ */
+public interface StreamHandler {
+	/**
+	 * @param response url, id and content type of the response being read
+	 * @param body the response body, closed for you afterwards
+	 */
+	public void onStream(SimpleResponse response, InputStream body) throws IOException;
+}
@@ -0,0 +1,54 @@
+package com.feigdev.webcom;
+
+/**
+ * Puts a fast cache, usually a MemoryResponseCache, in front of a bigger
+ * one, usually a DiskResponseCache. Entries found only in the second are
+ * copied into the first, and answered from there next time. Writes and
+ * removals go to both.
+ *
+ * @author emil10001
+ *
+ */
+public class TieredResponseCache implements ResponseCache {
+	private final ResponseCache first;
+	private final ResponseCache second;
+
+	public TieredResponseCache(ResponseCache first, ResponseCache second){
+		this.first = first;
+		this.second = second;
+	}
+
+	public CacheEntry get(String url){
+		CacheEntry entry = first.get(url);
+		if (entry == null){
+			entry = second.get(url);
+			if (entry != null){
+				first.put(url, entry.withSource(SimpleResponse.SOURCE_MEMORY));
+			}
+		}
+		return entry;
+	}
+
+	public void put(String url, CacheEntry entry){
+		first.put(url, entry);
+		second.put(url, entry);
+	}
+
+	public void remove(String url){
+		first.remove(url);
+		second.remove(url);
+	}
+
+	public void clear(){
+		first.clear();
+		second.clear();
+	}
+
+	public ResponseCache getFirst(){
+		return first;
+	}
+
+	public ResponseCache getSecond(){
+		return second;
+	}
+}
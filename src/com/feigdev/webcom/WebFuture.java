@@ -0,0 +1,339 @@
+package com.feigdev.webcom;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The result of WebModel.submit(), a Future that can also be chained.
+ *
+ * then() and thenAsync() build new futures from this one without blocking
+ * a thread, allOf() waits for several at once and withTimeout() gives up
+ * after a while. Callbacks run on the thread that completes the future, or
+ * right away on the caller's thread if it is already complete.
+ *
+ * A response with the status SimpleResponse.FAIL is still a successful
+ * result, the future only fails if a transform throws, a timeout passes or
+ * it is cancelled. Cancelling a chained future cancels the request it
+ * came from.
+ *
+ * @author emil10001
+ *
+ */
+public class WebFuture<T> implements Future<T> {
+	private static final int PENDING = 0;
+	private static final int SUCCEEDED = 1;
+	private static final int FAILED = 2;
+	private static final int CANCELLED = 3;
+
+	private int state = PENDING;
+	private T value;
+	private Throwable error;
+	private Runnable onCancel;
+	private ArrayList<Callback<? super T>> callbacks = new ArrayList<Callback<? super T>>();
+
+	public interface Callback<T> {
+		public void onSuccess(T value);
+		/**
+		 * @param error what went wrong, a CancellationException if the future was cancelled
+		 */
+		public void onFailure(Throwable error);
+	}
+
+	public interface Transform<T, R> {
+		public R apply(T value) throws Exception;
+	}
+
+	public interface AsyncTransform<T, R> {
+		public WebFuture<R> apply(T value) throws Exception;
+	}
+
+	public WebFuture(){
+	}
+
+	/**
+	 * @return a future that already holds the value
+	 */
+	public static <T> WebFuture<T> completed(T value){
+		WebFuture<T> future = new WebFuture<T>();
+		future.complete(value);
+		return future;
+	}
+
+	/**
+	 * @return false if the future was already complete
+	 */
+	public boolean complete(T value){
+		ArrayList<Callback<? super T>> toRun;
+		synchronized (this) {
+			if (state != PENDING){
+				return false;
+			}
+			state = SUCCEEDED;
+			this.value = value;
+			toRun = takeCallbacks();
+		}
+		for (Callback<? super T> callback: toRun){
+			callback.onSuccess(value);
+		}
+		return true;
+	}
+
+	/**
+	 * @return false if the future was already complete
+	 */
+	public boolean fail(Throwable error){
+		return finish(FAILED, error);
+	}
+
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		return finish(CANCELLED, new CancellationException());
+	}
+
+	private boolean finish(int newState, Throwable error){
+		ArrayList<Callback<? super T>> toRun;
+		Runnable hook;
+		synchronized (this) {
+			if (state != PENDING){
+				return false;
+			}
+			state = newState;
+			this.error = error;
+			toRun = takeCallbacks();
+			hook = newState == CANCELLED ? onCancel : null;
+			onCancel = null;
+		}
+		if (hook != null){
+			hook.run();
+		}
+		for (Callback<? super T> callback: toRun){
+			callback.onFailure(error);
+		}
+		return true;
+	}
+
+	private ArrayList<Callback<? super T>> takeCallbacks(){
+		ArrayList<Callback<? super T>> toRun = callbacks;
+		callbacks = null;
+		notifyAll();
+		return toRun;
+	}
+
+	/**
+	 * @param onCancel run once if this future is cancelled, right away if it
+	 * already was
+	 */
+	void setOnCancel(Runnable onCancel){
+		synchronized (this) {
+			if (state == PENDING){
+				this.onCancel = onCancel;
+				return;
+			}
+			if (state != CANCELLED){
+				return;
+			}
+		}
+		onCancel.run();
+	}
+
+	public synchronized boolean isCancelled() {
+		return state == CANCELLED;
+	}
+
+	public synchronized boolean isDone() {
+		return state != PENDING;
+	}
+
+	public synchronized T get() throws InterruptedException, ExecutionException {
+		while (state == PENDING){
+			wait();
+		}
+		return report();
+	}
+
+	public synchronized T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+		long end = System.nanoTime() + unit.toNanos(timeout);
+		while (state == PENDING){
+			long left = end - System.nanoTime();
+			if (left <= 0){
+				throw new TimeoutException();
+			}
+			TimeUnit.NANOSECONDS.timedWait(this, left);
+		}
+		return report();
+	}
+
+	private T report() throws ExecutionException {
+		switch (state){
+		case SUCCEEDED:
+			return value;
+		case CANCELLED:
+			throw new CancellationException();
+		default:
+			throw new ExecutionException(error);
+		}
+	}
+
+	/**
+	 * Runs the callback once the future completes.
+	 */
+	public void addCallback(Callback<? super T> callback){
+		int s;
+		synchronized (this) {
+			if (state == PENDING){
+				callbacks.add(callback);
+				return;
+			}
+			s = state;
+		}
+		if (s == SUCCEEDED){
+			callback.onSuccess(value);
+		}
+		else {
+			callback.onFailure(error);
+		}
+	}
+
+	/**
+	 * @return a future holding the transformed value of this one
+	 */
+	public <R> WebFuture<R> then(final Transform<? super T, R> transform){
+		final WebFuture<R> next = new WebFuture<R>();
+		next.setOnCancel(cancelThis());
+		addCallback(new Callback<T>() {
+			public void onSuccess(T v) {
+				try {
+					next.complete(transform.apply(v));
+				} catch (Exception e) {
+					next.fail(e);
+				}
+			}
+			public void onFailure(Throwable e) {
+				next.fail(e);
+			}
+		});
+		return next;
+	}
+
+	/**
+	 * Starts the next asynchronous step, usually another WebModel.submit(),
+	 * once this one has a value.
+	 *
+	 * @return a future holding the result of the next step
+	 */
+	public <R> WebFuture<R> thenAsync(final AsyncTransform<? super T, R> transform){
+		final WebFuture<R> next = new WebFuture<R>();
+		next.setOnCancel(cancelThis());
+		addCallback(new Callback<T>() {
+			public void onSuccess(T v) {
+				final WebFuture<R> step;
+				try {
+					step = transform.apply(v);
+				} catch (Exception e) {
+					next.fail(e);
+					return;
+				}
+				next.setOnCancel(new Runnable() {
+					public void run() {
+						step.cancel(true);
+					}
+				});
+				step.addCallback(new Callback<R>() {
+					public void onSuccess(R r) {
+						next.complete(r);
+					}
+					public void onFailure(Throwable e) {
+						next.fail(e);
+					}
+				});
+			}
+			public void onFailure(Throwable e) {
+				next.fail(e);
+			}
+		});
+		return next;
+	}
+
+	/**
+	 * @return a future that fails with a TimeoutException, and cancels this
+	 * one, if this one is not done within the timeout
+	 */
+	public WebFuture<T> withTimeout(long timeoutMillis){
+		final WebFuture<T> next = new WebFuture<T>();
+		final ScheduledFuture<?> timer = Dispatcher.schedule(new Runnable() {
+			public void run() {
+				if (next.fail(new TimeoutException())){
+					cancel(true);
+				}
+			}
+		}, timeoutMillis);
+		next.setOnCancel(cancelThis());
+		addCallback(new Callback<T>() {
+			public void onSuccess(T v) {
+				Dispatcher.unschedule(timer);
+				next.complete(v);
+			}
+			public void onFailure(Throwable e) {
+				Dispatcher.unschedule(timer);
+				next.fail(e);
+			}
+		});
+		return next;
+	}
+
+	/**
+	 * @return a future holding every value, in order, once all futures have
+	 * succeeded, or the first failure
+	 */
+	public static <T> WebFuture<List<T>> allOf(final List<WebFuture<T>> futures){
+		final WebFuture<List<T>> all = new WebFuture<List<T>>();
+		final ArrayList<T> values = new ArrayList<T>(futures.size());
+		final int[] remaining = { futures.size() };
+		if (futures.isEmpty()){
+			all.complete(values);
+			return all;
+		}
+		for (int i = 0; i < futures.size(); i++){
+			values.add(null);
+		}
+		all.setOnCancel(new Runnable() {
+			public void run() {
+				for (WebFuture<T> f: futures){
+					f.cancel(true);
+				}
+			}
+		});
+		for (int i = 0; i < futures.size(); i++){
+			final int index = i;
+			futures.get(i).addCallback(new Callback<T>() {
+				public void onSuccess(T v) {
+					boolean last;
+					synchronized (values) {
+						values.set(index, v);
+						last = --remaining[0] == 0;
+					}
+					if (last){
+						all.complete(values);
+					}
+				}
+				public void onFailure(Throwable e) {
+					all.fail(e);
+				}
+			});
+		}
+		return all;
+	}
+
+	private Runnable cancelThis(){
+		return new Runnable() {
+			public void run() {
+				cancel(true);
+			}
+		};
+	}
+}
@@ -1,10 +1,12 @@
 package com.feigdev.webcom;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
 
 import org.apache.http.NameValuePair;
+import org.apache.http.cookie.Cookie;
 import org.apache.http.entity.mime.HttpMultipartMode;
 import org.apache.http.entity.mime.MultipartEntity;
 import org.apache.http.entity.mime.content.ContentBody;
@@ -39,6 +41,18 @@ public class WebModel {
 	public static final int POST = 12314;
 	public static final int POST_AUTH = 12315;
 	public static final int POST_FILE = 12316;
+	public static final int BODY_STRING = 0;
+	public static final int BODY_BYTES = 1;
+	public static final int BODY_FILE = 2;
+	public static final int BODY_JSON = 3;
+	public static final int PRIORITY_LOW = 0;
+	public static final int PRIORITY_NORMAL = 1;
+	public static final int PRIORITY_HIGH = 2;
+	public static final int CACHE_DEFAULT = 0;
+	public static final int CACHE_NETWORK_ONLY = 1;
+	public static final int CACHE_ONLY = 2;
+	public static final int CACHE_ELSE_NETWORK = 3;
+	public static final int CACHE_FORCE_REFRESH = 4;
 	
 	public String getUsername() {
 		return username;
@@ -61,6 +75,25 @@ public class WebModel {
 
 	private String password;
 	private BasicCookieStore cookies;
+	private Dispatcher dispatcher;
+	private String clientProfile = SharedHttpClient.DEFAULT_PROFILE;
+	private int priority = PRIORITY_NORMAL;
+	private Object tag;
+	private boolean coalesce = true;
+	private ResponseDelivery delivery;
+	private StreamHandler streamHandler;
+	private int bodyType = BODY_STRING;
+	private File downloadFile;
+	private long maxResponseBytes;
+	private boolean compression = true;
+	private ProgressListener progressListener;
+	private ResponseCache responseCache;
+	private int cachePolicy = CACHE_DEFAULT;
+	private long maxStale = -1;
+	private long minFresh = -1;
+	private long staleWhileRevalidate = -1;
+	private long staleIfError = -1;
+	private long progressInterval = HttpController.DEFAULT_PROGRESS_INTERVAL;
 	
 	/**
 	 * Sets up the WebModel object
@@ -118,9 +151,145 @@ public class WebModel {
 	
 	/**
 	 * Run the interaction in the background
+	 * 
+	 * @return handle that can cancel the interaction, the listener is not
+	 * called for cancelled interactions
+	 */
+	public RequestHandle interact(){
+		return enqueue(listener, getDelivery());
+	}
+	
+	/**
+	 * Run the interaction in the background and get the response as a future
+	 * that can be chained with other requests. The WebComListener this
+	 * WebModel was built with is not called.
+	 * 
+	 * @return future holding the response, cancelling it cancels the interaction
+	 */
+	public WebFuture<SimpleResponse> submit(){
+		final WebFuture<SimpleResponse> future = new WebFuture<SimpleResponse>();
+		final RequestHandle handle = enqueue(new WebComListener() {
+			public void onResponse(SimpleResponse response) {
+				future.complete(response);
+			}
+		}, null);
+		future.setOnCancel(new Runnable() {
+			public void run() {
+				handle.cancel();
+			}
+		});
+		// cancelled through the handle, for example by Dispatcher.cancelAll()
+		handle.setOnCancel(new Runnable() {
+			public void run() {
+				future.cancel(false);
+			}
+		});
+		return future;
+	}
+	
+	/**
+	 * Runs the interaction in the background and hands the response to the
+	 * given listener instead of the one this WebModel was built with.
+	 * 
+	 * @param delivery runs the listener, null to run it on the network thread
+	 */
+	RequestHandle enqueue(final WebComListener listener, final ResponseDelivery delivery){
+    	final HttpController httpRequest = newController();
+    	final RequestHandle handle = new RequestHandle(Dispatcher.hostOf(getUrl()), tag, httpRequest);
+    	final ArrayList<NameValuePair> params = buildParams();
+    	
+    	if(Constants.VERBOSE){ Log.i(Constants.TAG,"interact("+ "" + ")");	}
+    	
+    	final SharedGet.Fetch fetch = new SharedGet.Fetch() {
+    		public SimpleResponse fetch() {
+    			try {
+    				return perform(httpRequest, params);
+    			} catch (RuntimeException e) {
+    				// a malformed url or a failing StreamHandler, still answer
+    				Log.w(Constants.TAG, "interaction with " + getUrl() + " failed", e);
+    				return failedResponse("Runtime Exception");
+    			}
+    		}
+    		
+    		public SimpleResponse failed(String message) {
+    			return failedResponse(message);
+    		}
+    	};
+    	
+    	if (canCoalesce()){
+    		// identical GETs already in flight are joined instead of sent again
+    		final int id = response.getId();
+    		getDispatcher().enqueueShared(coalesceKey(), priority, handle, fetch, new WebComListener() {
+    			public void onResponse(SimpleResponse shared) {
+    				deliver(handle, listener, delivery, shared.copyFor(id, contentType));
+    			}
+    		});
+    		return handle;
+    	}
+    	
+        Runnable runnable = new Dispatcher.Rejectable() {
+            public void run() {
+            	deliver(handle, listener, delivery, fetch.fetch());
+            }
+            
+            public void rejected() {
+            	deliver(handle, listener, delivery, fetch.failed("Rejected"));
+            }
+        };
+        
+        // run on background thread.
+        performOnBackgroundThread(handle, runnable);
+        return handle;
+    }
+	
+	/**
+	 * Run the interaction on the calling thread and wait for the response.
+	 * Meant for callers that are already on a worker thread, it skips the
+	 * Dispatcher, so its queue and limits do not apply. Never call this from
+	 * the UI thread.
+	 * 
+	 * @return the response, the listener is not called
+	 */
+	public SimpleResponse execute(){
+		if(Constants.VERBOSE){ Log.i(Constants.TAG,"execute()"); }
+		response = perform(newController(), buildParams());
+		return response;
+	}
+	
+	/**
+	 * @return a controller set up with this interaction's response options
 	 */
-	public void interact(){
-    	final HttpController httpRequest = new HttpController(); 
+	private HttpController newController(){
+		HttpController httpRequest = new HttpController(clientProfile);
+		httpRequest.setStreamHandler(streamHandler);
+		httpRequest.setBodyType(bodyType);
+		httpRequest.setDownloadFile(bodyType == BODY_FILE ? downloadFile : null);
+		httpRequest.setMaxResponseBytes(maxResponseBytes);
+		httpRequest.setCompression(compression);
+		httpRequest.setProgressListener(progressListener);
+		httpRequest.setProgressInterval(progressInterval);
+		httpRequest.setResponseCache(responseCache);
+		httpRequest.setCachePolicy(cachePolicy);
+		httpRequest.setMaxStale(maxStale);
+		httpRequest.setMinFresh(minFresh);
+		httpRequest.setStaleWhileRevalidate(staleWhileRevalidate);
+		httpRequest.setStaleIfError(staleIfError);
+		httpRequest.setDispatcher(getDispatcher());
+		return httpRequest;
+	}
+	
+	/**
+	 * Only GETs whose body ends up in the SimpleResponse can be shared, a
+	 * stream can only be read once and a file only written once. Progress
+	 * is only reported to the interaction that went to the network, and a
+	 * cache of its own only serves this interaction.
+	 */
+	private boolean canCoalesce(){
+		return requestType == GET && coalesce && streamHandler == null && bodyType != BODY_FILE
+				&& progressListener == null && responseCache == null;
+	}
+	
+	private ArrayList<NameValuePair> buildParams(){
     	HashMap<String, Object> parameters = this.getParameters();
     	Iterator<String> it = parameters.keySet().iterator();
     	
@@ -132,34 +301,74 @@ public class WebModel {
     		key = (String) it.next();
     		params.add(new BasicNameValuePair(key, (String)parameters.get(key)));
     	}
-    	
-    	if(Constants.VERBOSE){ Log.i(Constants.TAG,"interact("+ "" + ")");	}
-    	
-        Runnable runnable = new Runnable() {
-            public void run() {
-            	switch (requestType){
-            	case GET:
-            		response = httpRequest.get(getUrl(),contentType,response.getId(),cookies,headParams);
-            		break;
-            	case POST:
-            		response = httpRequest.post(getUrl(),params,contentType,response.getId(),cookies,headParams);
-            		break;
-            	case POST_AUTH:
-            		response = httpRequest.postAuth(getUrl(),params,username,password,contentType,response.getId(),cookies,headParams);
-            		break;
-            	case POST_FILE:
-            		response = httpRequest.postFile(getUrl(),params2,contentType,response.getId(),cookies,headParams);
-            		break;
-            	}
-            	if (listener != null){
-            		listener.onResponse(response);
-            	}
-            }
-        };
-        
-        // run on background thread.
-        WebModel.performOnBackgroundThread(runnable);	
-    }
+    	return params;
+	}
+	
+	private SimpleResponse perform(HttpController httpRequest, ArrayList<NameValuePair> params){
+		switch (requestType){
+		case POST:
+			return httpRequest.post(getUrl(),params,contentType,response.getId(),cookies,headParams);
+		case POST_AUTH:
+			return httpRequest.postAuth(getUrl(),params,username,password,contentType,response.getId(),cookies,headParams);
+		case POST_FILE:
+			return httpRequest.postFile(getUrl(),params2,contentType,response.getId(),cookies,headParams);
+		default:
+			return httpRequest.get(getUrl(),contentType,response.getId(),cookies,headParams);
+		}
+	}
+	
+	private void deliver(RequestHandle handle, WebComListener listener, ResponseDelivery delivery, SimpleResponse result){
+		response = result;
+		if (listener == null || handle.isCancelled()){
+			return;
+		}
+		if (delivery != null){
+			delivery.deliver(handle, listener, result);
+		}
+		else {
+			listener.onResponse(result);
+		}
+	}
+	
+	/**
+	 * @return the failure delivered when the interaction could not be run or
+	 * threw, for example because the Dispatcher was shut down
+	 */
+	private SimpleResponse failedResponse(String message){
+		SimpleResponse failed = new SimpleResponse();
+		failed.setUrl(getUrl());
+		failed.setId(response.getId());
+		failed.setContentType(contentType);
+		failed.setStatus(SimpleResponse.FAIL);
+		failed.setMessage(message);
+		return failed;
+	}
+	
+	/**
+	 * Two GETs with the same key would get the same response from the server,
+	 * read it into the same kind of SimpleResponse and use the cache the
+	 * same way. A JsonElementHandler is a StreamHandler, those are never
+	 * coalesced.
+	 */
+	private String coalesceKey(){
+		StringBuilder key = new StringBuilder("GET ").append(getUrl());
+		// everything that shapes the response besides the request itself
+		key.append("\nbody: ").append(bodyType).append(", max ").append(maxResponseBytes)
+			.append(", compression ").append(compression).append(", profile ").append(clientProfile);
+		key.append("\ncache: policy ").append(cachePolicy)
+			.append(", max-stale ").append(maxStale).append(", min-fresh ").append(minFresh)
+			.append(", swr ").append(staleWhileRevalidate).append(", sie ").append(staleIfError);
+		for (NameValuePair nvp: headParams){
+			key.append('\n').append(nvp.getName()).append(": ").append(nvp.getValue());
+		}
+		if (cookies != null){
+			for (Cookie c: cookies.getCookies()){
+				key.append("\nCookie: ").append(c.getName()).append('=').append(c.getValue())
+					.append("; ").append(c.getDomain()).append("; ").append(c.getPath());
+			}
+		}
+		return key.toString();
+	}
 	
 	public void setCookies(BasicCookieStore cookies){
 		this.cookies = cookies;
@@ -219,26 +428,277 @@ public class WebModel {
 	}
 	
     /**
-     * Executes the network requests on a separate thread.
+     * Executes the network requests on the dispatcher's worker threads,
+     * queued by priority with other requests to the same host.
      * 
+     * @param handle cancels the runnable while it is queued or running
      * @param runnable The runnable instance containing network mOperations to
      *        be executed.
      */
-    private static Thread performOnBackgroundThread(final Runnable runnable) {
-        final Thread t = new Thread() {
-            @Override
-            public void run() {
-                try {
-                    runnable.run();
-                } finally {
-
-                }
-            }
-        };
-        t.start();
-        return t;
+    private void performOnBackgroundThread(final RequestHandle handle, final Runnable runnable) {
+        getDispatcher().enqueue(handle.host, priority, handle, runnable);
     }
 
+	/**
+	 * @return the Dispatcher this interaction will run on, Dispatcher.getDefault()
+	 * unless one was set
+	 */
+	public Dispatcher getDispatcher() {
+		return dispatcher != null ? dispatcher : Dispatcher.getDefault();
+	}
+
+	/**
+	 * @param dispatcher run this interaction on the given Dispatcher, or null
+	 * for the default one
+	 */
+	public void setDispatcher(Dispatcher dispatcher) {
+		this.dispatcher = dispatcher;
+	}
+
+	public int getPriority() {
+		return priority;
+	}
+
+	/**
+	 * @param priority PRIORITY_HIGH for requests the user is waiting on,
+	 * PRIORITY_LOW for prefetch and analytics, PRIORITY_NORMAL otherwise
+	 */
+	public void setPriority(int priority) {
+		this.priority = priority;
+	}
+
+	public Object getTag() {
+		return tag;
+	}
+
+	/**
+	 * @param tag groups interactions so they can be cancelled together with
+	 * Dispatcher.cancelAll(tag), for example the screen that started them
+	 */
+	public void setTag(Object tag) {
+		this.tag = tag;
+	}
+
+	/**
+	 * @return the ResponseDelivery that calls the listener,
+	 * ResponseDelivery.getDefault() unless one was set
+	 */
+	public ResponseDelivery getDelivery() {
+		return delivery != null ? delivery : ResponseDelivery.getDefault();
+	}
+
+	/**
+	 * @param delivery chooses the thread the listener is called on, or null
+	 * for the default
+	 */
+	public void setDelivery(ResponseDelivery delivery) {
+		this.delivery = delivery;
+	}
+
+	public StreamHandler getStreamHandler() {
+		return streamHandler;
+	}
+
+	/**
+	 * @param streamHandler receives the body while it arrives, on the network
+	 * thread, instead of having it collected into SimpleResponse.getMessage().
+	 * Use a ChunkHandler to get it in chunks.
+	 */
+	public void setStreamHandler(StreamHandler streamHandler) {
+		this.streamHandler = streamHandler;
+	}
+
+	public int getBodyType() {
+		return bodyType;
+	}
+
+	/**
+	 * @param bodyType BODY_STRING to get the body from SimpleResponse.getMessage(),
+	 * BODY_BYTES to get the raw bytes from SimpleResponse.getBytes() without
+	 * decoding them, for images and other binary content, BODY_FILE to save
+	 * it to the file given to setDownloadFile(), BODY_JSON to have it parsed
+	 * while it arrives and get the result from SimpleResponse.getJson()
+	 */
+	public void setBodyType(int bodyType) {
+		this.bodyType = bodyType;
+	}
+
+	public File getDownloadFile() {
+		return downloadFile;
+	}
+
+	/**
+	 * Saves the body of this GET to a file instead of keeping it in memory and
+	 * sets the body type to BODY_FILE. An interrupted download is resumed
+	 * where it stopped the next time the same file is downloaded.
+	 * SimpleResponse.getFile() and getBytesReceived() report the result.
+	 * 
+	 * @param downloadFile where to save the body
+	 */
+	public void setDownloadFile(File downloadFile) {
+		this.downloadFile = downloadFile;
+		this.bodyType = BODY_FILE;
+	}
+
+	public long getMaxResponseBytes() {
+		return maxResponseBytes;
+	}
+
+	/**
+	 * @param maxResponseBytes largest body to accept, 0 to use
+	 * HttpController.getDefaultMaxResponseBytes(). A bigger body is aborted
+	 * as soon as that is known, and the response has the status
+	 * SimpleResponse.TOO_LARGE.
+	 */
+	public void setMaxResponseBytes(long maxResponseBytes) {
+		this.maxResponseBytes = maxResponseBytes;
+	}
+
+	public ResponseCache getResponseCache() {
+		return responseCache;
+	}
+
+	/**
+	 * @param responseCache cache a GET is answered from while its copy is fresh,
+	 * and its response stored in. Null to use
+	 * HttpController.getDefaultResponseCache().
+	 */
+	public void setResponseCache(ResponseCache responseCache) {
+		this.responseCache = responseCache;
+	}
+
+	public int getCachePolicy() {
+		return cachePolicy;
+	}
+
+	/**
+	 * @param cachePolicy how a GET uses the response cache:
+	 * WebModel.CACHE_DEFAULT follows the HTTP caching rules,
+	 * WebModel.CACHE_NETWORK_ONLY always downloads the whole response,
+	 * WebModel.CACHE_ONLY never goes to the network and fails with status
+	 * code 504 if nothing is cached, WebModel.CACHE_ELSE_NETWORK takes any
+	 * cached copy and only goes to the network without one, and
+	 * WebModel.CACHE_FORCE_REFRESH always asks the server, conditionally if
+	 * it can. The last three still store the response.
+	 */
+	public void setCachePolicy(int cachePolicy) {
+		this.cachePolicy = cachePolicy;
+	}
+
+	public long getMaxStale() {
+		return maxStale;
+	}
+
+	/**
+	 * @param seconds how long past its freshness a cached copy may be and still
+	 * be answered with, -1 to leave it to the request headers or the cache
+	 * policy
+	 */
+	public void setMaxStale(long seconds) {
+		this.maxStale = seconds;
+	}
+
+	public long getMinFresh() {
+		return minFresh;
+	}
+
+	/**
+	 * @param seconds how much longer a cached copy must stay fresh to be
+	 * answered with, -1 to leave it to the request headers
+	 */
+	public void setMinFresh(long seconds) {
+		this.minFresh = seconds;
+	}
+
+	public long getStaleWhileRevalidate() {
+		return staleWhileRevalidate;
+	}
+
+	/**
+	 * @param seconds how stale a cached response may be and still be answered
+	 * with right away, SimpleResponse.isStale() tells, while a background
+	 * request refreshes the cache. -1 leaves it to the response's own
+	 * Cache-Control.
+	 */
+	public void setStaleWhileRevalidate(long seconds) {
+		this.staleWhileRevalidate = seconds;
+	}
+
+	public long getStaleIfError() {
+		return staleIfError;
+	}
+
+	/**
+	 * @param seconds how stale a cached response may be and still be answered
+	 * with when the network fails. -1 leaves it to the response's own
+	 * Cache-Control.
+	 */
+	public void setStaleIfError(long seconds) {
+		this.staleIfError = seconds;
+	}
+
+	public ProgressListener getProgressListener() {
+		return progressListener;
+	}
+
+	/**
+	 * @param progressListener hears how much of an upload was sent and how much
+	 * of the response arrived, on the network thread. Null for no reports.
+	 */
+	public void setProgressListener(ProgressListener progressListener) {
+		this.progressListener = progressListener;
+	}
+
+	public long getProgressInterval() {
+		return progressInterval;
+	}
+
+	/**
+	 * @param progressInterval least milliseconds between two progress reports,
+	 * HttpController.DEFAULT_PROGRESS_INTERVAL unless set
+	 */
+	public void setProgressInterval(long progressInterval) {
+		this.progressInterval = progressInterval;
+	}
+
+	public boolean isCompression() {
+		return compression;
+	}
+
+	/**
+	 * @param compression when true, which is the default, the request asks
+	 * for a gzip or deflate body and it is decoded while it is read. Downloads
+	 * to a file are never compressed.
+	 */
+	public void setCompression(boolean compression) {
+		this.compression = compression;
+	}
+
+	public boolean isCoalesce() {
+		return coalesce;
+	}
+
+	/**
+	 * @param coalesce when true, which is the default, a GET that is identical
+	 * to one already in flight waits for that one's response instead of
+	 * going to the network again
+	 */
+	public void setCoalesce(boolean coalesce) {
+		this.coalesce = coalesce;
+	}
+
+	public String getClientProfile() {
+		return clientProfile;
+	}
+
+	/**
+	 * @param clientProfile name of the SharedHttpClient profile whose pooled
+	 * connections this interaction should use
+	 */
+	public void setClientProfile(String clientProfile) {
+		this.clientProfile = clientProfile;
+	}
+
     public void addHeadParam(String name, String value){
     	headParams.add(new BasicNameValuePair(name,value));
     }
@@ -0,0 +1,72 @@
+package com.feigdev.webcom;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Checks on a plain JVM that a Batch completes when one of its members
+ * fails before it gets to the network, here with a url HttpGet refuses,
+ * and that every member reports back exactly once. No deadline is set, so
+ * only the members themselves can finish the batch. Nothing listens on the
+ * other url either, it fails with a refused connection.
+ *
+ * java -cp bin:test-bin:httpclient.jar:httpcore.jar:httpmime.jar:commons-logging.jar
+ *     com.feigdev.webcom.BatchCheck
+ *
+ * Throws an AssertionError on the first check that fails.
+ *
+ * @author emil10001
+ *
+ */
+public class BatchCheck {
+
+	public static void main(String[] args) throws Exception {
+		Dispatcher dispatcher = Dispatcher.newFixed(2);
+		try {
+			ArrayList<WebModel> models = new ArrayList<WebModel>();
+			models.add(model("http://127.0.0.1/a b", dispatcher));
+			models.add(model("http://127.0.0.1:1/", dispatcher));
+
+			final CountDownLatch done = new CountDownLatch(1);
+			final AtomicInteger calls = new AtomicInteger();
+			final AtomicReference<BatchResult> result = new AtomicReference<BatchResult>();
+			new Batch(models).execute(new BatchListener() {
+				public void onBatchComplete(BatchResult r) {
+					calls.incrementAndGet();
+					result.set(r);
+					done.countDown();
+				}
+			});
+			check(done.await(10, TimeUnit.SECONDS), "batch completed");
+			check(result.get().getResponses().get(0).getStatus() == SimpleResponse.FAIL, "malformed url failed");
+			check(result.get().getResponses().get(1).getStatus() == SimpleResponse.FAIL, "refused connection failed");
+			check(!result.get().isTimedOut(), "not timed out");
+
+			// a failing submit() completes its future as well
+			SimpleResponse submitted = model("http://127.0.0.1/a b", dispatcher).submit().get(10, TimeUnit.SECONDS);
+			check(submitted.getStatus() == SimpleResponse.FAIL, "submit() failed");
+
+			Thread.sleep(200);
+			check(calls.get() == 1, "listener called once, not " + calls.get());
+			System.out.println("Batch ok");
+		} finally {
+			dispatcher.shutdown();
+		}
+	}
+
+	private static WebModel model(String url, Dispatcher dispatcher){
+		WebModel model = new WebModel(url, null);
+		model.setRequestType(WebModel.GET);
+		model.setDispatcher(dispatcher);
+		return model;
+	}
+
+	private static void check(boolean condition, String what){
+		if (!condition){
+			throw new AssertionError(what);
+		}
+	}
+}
@@ -0,0 +1,114 @@
+package com.feigdev.webcom;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+import org.apache.http.Header;
+import org.apache.http.message.BasicHeader;
+
+/**
+ * Checks DiskResponseCache on a plain JVM against a temp directory: least
+ * recently used eviction, journal replay after reopening, and cleanup of
+ * what a crash leaves behind. Nothing here needs a device, only httpcore
+ * on the classpath next to the compiled src and test directories:
+ *
+ * java -cp bin:test-bin:httpcore.jar com.feigdev.webcom.DiskResponseCacheCheck
+ *
+ * Throws an AssertionError on the first check that fails.
+ *
+ * @author emil10001
+ *
+ */
+public class DiskResponseCacheCheck {
+	private static final String A = "http://example.com/a";
+	private static final String B = "http://example.com/b";
+	private static final String C = "http://example.com/c";
+	private static final String D = "http://example.com/d";
+	private static final String E = "http://example.com/e";
+
+	public static void main(String[] args) throws IOException {
+		File dir = new File(System.getProperty("java.io.tmpdir"), "webcom-disk-" + System.nanoTime());
+		try {
+			// every entry has the same size, so the cache holds exactly three
+			DiskResponseCache probe = new DiskResponseCache(new File(dir, "probe"), Long.MAX_VALUE);
+			probe.put(A, entry());
+			long entrySize = probe.getSize();
+			probe.close();
+
+			File cacheDir = new File(dir, "cache");
+			DiskResponseCache cache = new DiskResponseCache(cacheDir, 3 * entrySize);
+			cache.put(A, entry());
+			cache.put(B, entry());
+			cache.put(C, entry());
+			check(cache.get(A) != null, "a is cached");
+			// a was used last, so b is the least recently used and goes first
+			cache.put(D, entry());
+			check(cache.get(B) == null, "b evicted before a");
+			check(cache.getEvictionCount() == 1, "one eviction");
+			check(cache.get(C) != null && cache.get(D) != null, "c and d kept");
+			check(cache.get(A).getSource() == SimpleResponse.SOURCE_DISK, "entries come from disk");
+			cache.close();
+
+			// leftovers of a crash: a half written entry and a journal line cut short
+			File stray = new File(cacheDir, "0123456789abcdef0123456789abcdef.7.tmp");
+			stray.createNewFile();
+			Writer journal = new FileWriter(new File(cacheDir, DiskResponseCache.JOURNAL), true);
+			journal.write("WRITE 0123");
+			journal.close();
+
+			cache = new DiskResponseCache(cacheDir, 3 * entrySize);
+			check(!stray.exists(), "temporary file deleted on open");
+			check(cache.getEntryCount() == 3, "three entries replayed, not " + cache.getEntryCount());
+			check(cache.getSize() == 3 * entrySize, "size replayed");
+			// the replayed order is c, d, a, so reading c leaves d as the eldest
+			check(cache.get(C) != null, "c replayed");
+			cache.put(E, entry());
+			check(cache.get(D) == null, "d evicted after replay");
+			check(cache.get(A) != null && cache.get(C) != null && cache.get(E) != null, "a, c and e kept");
+			cache.close();
+
+			cache = new DiskResponseCache(cacheDir, 3 * entrySize);
+			check(cache.get(B) == null && cache.get(D) == null, "removals replayed");
+			check(cache.getEntryCount() == 3, "three entries after second replay");
+
+			// an entry file that can't be read is dropped by the get() that finds it
+			for (File f: cacheDir.listFiles()){
+				if (f.getName().endsWith(".0")){
+					Writer garbage = new FileWriter(f);
+					garbage.write("garbage");
+					garbage.close();
+				}
+			}
+			check(cache.get(A) == null, "corrupt entry not served");
+			check(cache.getEntryCount() == 2, "corrupt entry removed");
+			cache.close();
+			System.out.println("DiskResponseCache ok");
+		} finally {
+			delete(dir);
+		}
+	}
+
+	private static CacheEntry entry(){
+		long now = System.currentTimeMillis();
+		Header[] headers = new Header[]{ new BasicHeader("Cache-Control", "max-age=60") };
+		return new CacheEntry(200, headers, new byte[256], "UTF-8", now, now);
+	}
+
+	private static void check(boolean condition, String what){
+		if (!condition){
+			throw new AssertionError(what);
+		}
+	}
+
+	private static void delete(File file){
+		File[] children = file.listFiles();
+		if (children != null){
+			for (File child: children){
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}